@@ -1,23 +1,307 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.MalformedInputException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 public class Tig {
     private static final String REPO_DIR = "repo_java";
     private static final String STAGED_FILE = "staged.csv";
-    private static final String COMMIT_FILE = "commits.csv";
+    private static final String STAGED_LOCK_FILE = "staged.lock";
+    private static final long STAGED_COMPACT_BYTES = 1024 * 1024;
+    private static final String LEGACY_COMMIT_FILE = "commits.csv";
+    private static final String COMMIT_LOG_FILE = "commits.log";
+    private static final String COMMIT_INDEX_FILE = "commits.idx";
+    private static final String COMMIT_IDS_FILE = "commits.ids";
+    private static final int COMMIT_ID_LEN = 16;
+    private static final Pattern COMMIT_ID_DIR = Pattern.compile("[0-9a-f-]{" + COMMIT_ID_LEN + "}");
+    private static final String COMMIT_DIRS_MIGRATED_FILE = "commitdirs.migrated";
     private static final String TIGIGNORE_FILE = ".tigignore";
+    private static final String INDEX_FILE = "index.csv";
+    private static final String OBJECTS_DIR = "objects";
+    private static final String PACKS_DIR = "packs";
+    private static final String MANIFESTS_DIR = "manifests";
+    private static final String HISTORY_DIR = "history";
+    private static final String HISTORY_STATE_FILE = "state";
+    private static final String CHUNKS_DIR = "chunks";
+    private static final String SPARSE_FILE = "sparse";
+    private static final String HEAD_FILE = "HEAD";
+    private static final String DAEMON_SOCKET = "daemon.sock";
+    private static final byte DAEMON_EXIT = 0;
+    private static final byte DAEMON_STDOUT = 1;
+    private static final byte DAEMON_STDERR = 2;
+    private static final int MANIFEST_CACHE_SIZE = 16;
+    private static final long WATCH_SETTLE_MILLIS = 100;
+    private static final int MANIFEST_MAGIC = 0x5449_474D; // "TIGM"
     private static final int HASH_LEN = 16;
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final long MMAP_THRESHOLD = 64L * 1024 * 1024;
+    private static final long MMAP_WINDOW = 64L * 1024 * 1024;
+    private static final int PACK_MAGIC = 0x5449_4750; // "TIGP"
+    private static final int PACK_VERSION = 1;
+    private static final byte PACK_ENTRY_FULL = 1;
+    private static final byte PACK_ENTRY_DELTA = 2;
+    private static final int PACK_ENTRY_HEADER = 1 + Long.BYTES + Integer.BYTES;
+    private static final int PACK_INDEX_RECORD = HASH_LEN + Long.BYTES;
+    private static final long PACK_MAX_OBJECT = 512L * 1024 * 1024;
+    // commits.idx holds one (id, log offset) record per commit in commit order, commits.ids holds
+    // (id, sequence number) records sorted by id
+    private static final int COMMIT_INDEX_RECORD = COMMIT_ID_LEN + Long.BYTES;
+    private static final int COMMIT_IDS_RECORD = COMMIT_ID_LEN + Integer.BYTES;
+    private static final int MAX_DELTA_DEPTH = 16;
+    private static final long DELTA_MAX_OBJECT = 16L * 1024 * 1024;
+    private static final int DELTA_BLOCK = 16;
+    private static final long BASE_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final long CHUNK_THRESHOLD = 4L * 1024 * 1024;
+    private static final int CHUNK_MIN = 16 * 1024;
+    private static final int CHUNK_AVG = 64 * 1024;
+    private static final int CHUNK_MAX = 256 * 1024;
+    // Cut-point masks on the top bits of the gear hash: 18 bits before the average size, 14 after
+    private static final long CHUNK_MASK_STRICT = -1L << (64 - 18);
+    private static final long CHUNK_MASK_LOOSE = -1L << (64 - 14);
+    private static final int CHUNK_LIST_RECORD = HASH_LEN + Integer.BYTES;
+    private static final long[] GEAR = gearTable();
+    private static final int DEFAULT_DIFF_CONTEXT = 3;
+    // Beyond this many edits in one region the diff settles for a valid but possibly longer script
+    private static final int MAX_DIFF_COST = 4096;
+    private static final int SNIFF_BYTES = 8000;
+    // Binary diffs index at most this many blocks of the committed version, whatever its size
+    private static final int BINARY_DIFF_MAX_BLOCKS = 64 * 1024;
+    private static final int BINARY_DIFF_MIN_BLOCK = 64;
+    private static final int BINARY_DIFF_MAX_RANGES = 50;
+    private static final int STAT_GRAPH_WIDTH = 40;
+
+    // One direct read buffer per hashing thread, so hashing allocates nothing per file
+    private static final ThreadLocal<ByteBuffer> hashBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    // Stat cache: relative path -> size, mtime, file key and last known hash
+    private record IndexEntry(long size, long mtime, String fileKey, String hash) {}
+
+    private static boolean useCache = true;
+    private static boolean reportCacheStats = false;
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+    private static Path indexPath;
+    private static Map<String, IndexEntry> index;
+    private static long indexMtime;
+    private static volatile boolean indexDirty;
+    private static final AtomicInteger cacheHits = new AtomicInteger();
+    private static final AtomicInteger cacheMisses = new AtomicInteger();
+
+    // The phases --profile reports on. Each one is also a JDK Flight Recorder event, so the same
+    // breakdown can be captured with `-XX:StartFlightRecording` on a live machine.
+    private enum Phase {
+        WALK("walk"), HASH("hash"), LOG_PARSE("log-parse"), COPY("copy"), DIFF("diff");
+
+        final String label;
+        final LongAdder nanos = new LongAdder();
+        final LongAdder calls = new LongAdder();
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        PhaseTimer start() {
+            PhaseEvent event = switch (this) {
+                case WALK -> new WalkEvent();
+                case HASH -> new HashEvent();
+                case LOG_PARSE -> new LogParseEvent();
+                case COPY -> new CopyEvent();
+                case DIFF -> new DiffEvent();
+            };
+            event.begin();
+            return new PhaseTimer(this, event, System.nanoTime());
+        }
+    }
+
+    private record PhaseTimer(Phase phase, PhaseEvent event, long start) {
+        void end(String path, long items, long bytes) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = path;
+                event.items = items;
+                event.bytes = bytes;
+                event.commit();
+            }
+            phase.nanos.add(System.nanoTime() - start);
+            phase.calls.increment();
+        }
+    }
+
+    @Category("Tig")
+    @StackTrace(false)
+    private abstract static class PhaseEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Items")
+        long items;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    // Covers the whole walk, including the hashing of the files it finds
+    @Name("tig.Walk")
+    @Label("Walk")
+    private static final class WalkEvent extends PhaseEvent {}
+
+    @Name("tig.Hash")
+    @Label("Hash")
+    private static final class HashEvent extends PhaseEvent {}
+
+    // Reading a commit record, a manifest or a per-path history
+    @Name("tig.LogParse")
+    @Label("Log Parse")
+    private static final class LogParseEvent extends PhaseEvent {}
+
+    // Copying a file into the object store or restoring one from it
+    @Name("tig.Copy")
+    @Label("Copy")
+    private static final class CopyEvent extends PhaseEvent {}
+
+    @Name("tig.Diff")
+    @Label("Diff")
+    private static final class DiffEvent extends PhaseEvent {}
+
+    private static boolean profile = false;
+    private static final LongAdder bytesRead = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+    // Working files hashed because the cache could not answer; unlike the HASH phase's calls, this
+    // leaves out re-hashing a copied object to verify it
+    private static final LongAdder filesHashed = new LongAdder();
+
+    private record Commit(String id, String date, String message, String parent, Map<String, String> files) {}
+
+    // How many commits the per-path history covers, and whether every one of them was made on top of
+    // the commit before it
+    private record HistoryState(int indexed, boolean linear) {}
+
+    // One path that differs between two manifests: 'A'dded, 'D'eleted or 'M'odified
+    private record TreeChange(char status, String path, String oldHash, String newHash) {}
+
+    // A pack file and its index of sorted (hash, offset) records, both memory-mapped on first use
+    private record Pack(Path packFile, FileChannel channel, MappedByteBuffer index, int count) {}
+
+    private static Path packsDir;
+    private static List<Pack> packs;
+    private static long packsMtime;
+
+    // Commit records and manifests never change once written, so they are kept for the life of the
+    // process; this is what makes repeated requests to the daemon cheap
+    private static final Map<Integer, Commit> commitCache = new ConcurrentHashMap<>();
+    private static final LinkedHashMap<String, SortedMap<String, String>> manifestCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SortedMap<String, String>> eldest) {
+            return size() > MANIFEST_CACHE_SIZE;
+        }
+    };
+
+    private static Path ignorePath;
+    private static long ignoreMtime;
+    private static IgnoreMatcher ignoreMatcher;
+
+    // Set while `status --watch` or the daemon keeps a live snapshot of the working tree
+    private static TreeWatcher watcher;
+
+    // Recently reconstructed delta bases, least recently used first
+    private static final LinkedHashMap<String, byte[]> baseCache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long baseCacheSize;
 
     public static void main(String[] args) throws IOException {
+        List<String> argList = new ArrayList<>(Arrays.asList(args));
+        boolean useDaemon = !argList.subList(0, commandIndex(args)).remove("--no-daemon");
+        args = argList.toArray(new String[0]);
+
+        // Hand the command to a daemon serving this repository, if one is running
+        if (useDaemon && isDaemonCommand(args)) {
+            Integer status = sendToDaemon(args);
+            if (status != null) {
+                if (status != 0) {
+                    System.exit(status);
+                }
+                return;
+            }
+        }
+        run(args);
+    }
+
+    private static void run(String[] args) throws IOException {
+        useCache = true;
+        reportCacheStats = false;
+        profile = false;
+        parallelism = Runtime.getRuntime().availableProcessors();
+        int commandIndex = commandIndex(args);
+        for (int i = 0; i < commandIndex; i++) {
+            switch (args[i]) {
+                case "--no-cache":
+                    useCache = false;
+                    break;
+                case "--cache-stats":
+                    reportCacheStats = true;
+                    break;
+                case "--profile":
+                    profile = true;
+                    break;
+                case "--jobs":
+                    parallelism = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                default:
+                    // --no-daemon only matters to main()
+            }
+        }
+        args = Arrays.copyOfRange(args, commandIndex, args.length);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        for (Phase phase : Phase.values()) {
+            phase.nanos.reset();
+            phase.calls.reset();
+        }
+        bytesRead.reset();
+        bytesWritten.reset();
+        filesHashed.reset();
+        long start = System.nanoTime();
+
         if (args.length < 1) {
-            System.err.println("Usage: java Tig <command> [args]");
+            System.err.println("Usage: java Tig [--no-cache] [--cache-stats] [--profile] [--jobs <n>] [--no-daemon] <command> [args]");
             return;
         }
 
@@ -33,10 +317,10 @@ public class Tig {
 
             case "add":
                 if (args.length < 2) {
-                    System.err.println("Usage: java Tig add <file>");
+                    System.err.println("Usage: java Tig add <file|directory|glob>... | -A");
                     return;
                 }
-                add(args[1]);
+                add(Arrays.asList(args).subList(1, args.length));
                 break;
 
             case "commit":
@@ -48,41 +332,345 @@ public class Tig {
                 break;
 
             case "log":
-                if (args.length < 1) {
-                    System.err.println("Usage: java Tig log [-num]");
+                if (args.length > 1 && args[args.length - 1].equals("--")) {
+                    System.err.println("Usage: java Tig log [-num] [-- <file>]");
                     return;
                 } else if (args.length < 2) {
                     log();  
                 } else {
-                    log(args[1]); 
+                    log(Arrays.copyOfRange(args, 1, args.length)); 
                 }
                 break;
             
       
 
-            case "status":
-                status(System.getProperty("user.dir"));
+            case "status": {
+                boolean watch = args.length > 1 && args[1].equals("--watch");
+                PathSpec paths = pathSpecArgs(args, watch ? 2 : 1);
+                if (watch) {
+                    watchStatus(System.getProperty("user.dir"), paths);
+                } else {
+                    status(System.getProperty("user.dir"), paths);
+                }
                 break;
+            }
 
             case "checkout":
                 if (args.length < 2) {
-                    System.err.println("Usage: java Tig checkout <commit_id>");
+                    System.err.println("Usage: java Tig checkout <commit_id> [[--] <path>...]");
                     return;
                 }
-                checkout(args[1]);
+                checkout(args[1], args.length > 2 ? pathSpecArgs(args, 2) : null);
+                break;
+
+            case "sparse":
+                sparse(Arrays.copyOfRange(args, 1, args.length));
                 break;
 
             case "diff":
+                if (args.length > 1 && (args[1].equals("--stat") || args[1].equals("--name-status"))) {
+                    int separator = Arrays.asList(args).indexOf("--");
+                    int commits = (separator < 0 ? args.length : separator) - 2;
+                    if (commits < 1 || commits > 2) {
+                        System.err.println("Usage: java Tig diff --stat|--name-status <commit_id> [<commit_id>] [-- <path>...]");
+                        return;
+                    }
+                    PathSpec paths = separator < 0 ? null : pathSpecArgs(args, separator);
+                    diffTree(args[2], commits > 1 ? args[3] : null, args[1].equals("--stat"), paths == null ? PathSpec.ALL : paths);
+                    break;
+                }
+                int context = DEFAULT_DIFF_CONTEXT;
+                int fileArg = 1;
+                if (args.length > 2 && (args[1].equals("-U") || args[1].equals("--context"))) {
+                    context = Integer.parseInt(args[2]);
+                    fileArg = 3;
+                } else if (args.length > 1 && args[1].startsWith("-U")) {
+                    context = Integer.parseInt(args[1].substring(2));
+                    fileArg = 2;
+                }
+                if (args.length == fileArg + 3) {
+                    diffCommits(args[fileArg], args[fileArg + 1], args[fileArg + 2], context);
+                } else if (args.length == fileArg + 1) {
+                    diff(args[fileArg], context);
+                } else {
+                    System.err.println("Usage: java Tig diff [-U <context_lines>] [<commit_id> <commit_id>] <filename>");
+                    return;
+                }
+                break;
+
+            case "repack":
+                repack();
+                break;
+
+            case "daemon":
+                if (args.length > 1 && args[1].equals("stop")) {
+                    stopDaemon();
+                } else {
+                    daemon();
+                }
+                break;
+
+            case "bench":
                 if (args.length < 2) {
-                    System.err.println("Usage: java Tig diff <filename>");
+                    System.err.println("Usage: java Tig bench hash [max_size] | delta [revisions] [lines] | diff [lines] | generate <directory> [options] | commands [options]");
                     return;
                 }
-                diff(args[1]);
+                bench(Arrays.copyOfRange(args, 1, args.length));
                 break;
 
             default:
                 System.err.println("Unknown command: " + command);
         }
+
+        saveIndex();
+        if (reportCacheStats) {
+            System.err.println("Hash cache: " + cacheHits.get() + " hits, " + cacheMisses.get() + " misses");
+        }
+        if (profile) {
+            printProfile(System.nanoTime() - start);
+        }
+    }
+
+    // Phases run on several threads at once report the time summed over those threads, so hash time
+    // can exceed the wall time of the walk that triggered it
+    private static void printProfile(long wallNanos) {
+        System.err.printf("Profile: %.3f ms wall time%n", wallNanos / 1_000_000.0);
+        System.err.printf("  %-10s %10s %12s%n", "phase", "calls", "time_ms");
+        for (Phase phase : Phase.values()) {
+            System.err.printf("  %-10s %10d %12.3f%n", phase.label, phase.calls.sum(), phase.nanos.sum() / 1_000_000.0);
+        }
+        System.err.println("  Bytes read: " + bytesRead.sum() + ", bytes written: " + bytesWritten.sum());
+        System.err.println("  Files hashed: " + filesHashed.sum() + ", hash cache: " + cacheHits.get() + " hits, " + cacheMisses.get() + " misses");
+    }
+
+    // Commands that need a repository are worth sending to a daemon; init, bench and daemon itself are
+    // not, and neither is `status --watch`, which never returns and would block the daemon
+    private static boolean isDaemonCommand(String[] args) {
+        if (Arrays.asList(args).contains("--watch")) {
+            return false;
+        }
+        int commandIndex = commandIndex(args);
+        if (commandIndex == args.length) {
+            return false;
+        }
+        String command = args[commandIndex];
+        return !command.equals("init") && !command.equals("bench") && !command.equals("daemon");
+    }
+
+    // Global options are only recognised before the command word, so the same spelling later on is
+    // left to the command itself (a file named --profile, `bench commands --jobs 4`, ...)
+    private static int commandIndex(String[] args) {
+        int i = 0;
+        while (i < args.length) {
+            if (args[i].equals("--jobs") && i + 1 < args.length) {
+                i += 2;
+            } else if (args[i].equals("--no-cache") || args[i].equals("--cache-stats") || args[i].equals("--profile")
+                    || args[i].equals("--no-daemon")) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    // The client side of the daemon protocol: the arguments go out as a count followed by strings, and
+    // the daemon answers with stdout/stderr frames (type, length, bytes) ended by an exit frame holding
+    // the status. Returns null when no daemon is listening for this repository.
+    private static Integer sendToDaemon(String[] args) throws IOException {
+        Path socket = Paths.get(System.getProperty("user.dir")).resolve(".tig").resolve(DAEMON_SOCKET);
+        if (!Files.exists(socket)) {
+            return null;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return null;
+        }
+
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeInt(args.length);
+            for (String arg : args) {
+                writeString(request, arg);
+            }
+            request.flush();
+
+            DataInputStream reply = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                byte stream = reply.readByte();
+                if (stream == DAEMON_EXIT) {
+                    return reply.readInt();
+                }
+                byte[] data = new byte[reply.readInt()];
+                reply.readFully(data);
+                (stream == DAEMON_STDERR ? System.err : System.out).write(data);
+            }
+        } catch (EOFException e) {
+            System.err.println("Error: Lost connection to the daemon");
+            return 1;
+        } finally {
+            System.out.flush();
+        }
+    }
+
+    // Serves commands for the repository in the working directory over .tig/daemon.sock, one request at
+    // a time. Between requests the stat cache, parsed commits, manifests, ignore rules and pack indexes
+    // stay in memory, so a command only pays for what changed on disk since the last one.
+    private static void daemon() throws IOException {
+        Path repoPath = Paths.get(System.getProperty("user.dir"));
+        Path tigDir = repoPath.resolve(".tig");
+        if (!Files.isDirectory(tigDir)) {
+            System.err.println("Error: Not a tig repository: " + repoPath);
+            return;
+        }
+        Path socket = tigDir.resolve(DAEMON_SOCKET);
+        if (Files.exists(socket)) {
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+                System.err.println("Error: A daemon is already running on " + socket);
+                return;
+            } catch (IOException e) {
+                // Left behind by a daemon that did not shut down cleanly
+                Files.delete(socket);
+            }
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // Nothing left to report to
+                }
+            }));
+            try {
+                watcher = new TreeWatcher(repoPath);
+            } catch (IOException e) {
+                System.err.println("Warning: Cannot watch the working tree, status will rescan it: " + e.getMessage());
+            }
+            System.out.println("Daemon listening on " + socket);
+
+            boolean running = true;
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+                    DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+                    String[] request = new String[in.readInt()];
+                    for (int i = 0; i < request.length; i++) {
+                        request[i] = readString(in);
+                    }
+
+                    int status = 0;
+                    if (request.length == 2 && request[0].equals("daemon") && request[1].equals("stop")) {
+                        running = false;
+                    } else {
+                        status = serveRequest(tigDir, request, reply);
+                    }
+                    reply.writeByte(DAEMON_EXIT);
+                    reply.writeInt(status);
+                    reply.flush();
+                } catch (EOFException e) {
+                    // A client that connected only to see whether a daemon is running
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+            closePacks();
+            if (watcher != null) {
+                watcher.close();
+                watcher = null;
+            }
+        }
+        System.out.println("Daemon stopped");
+    }
+
+    private static void stopDaemon() throws IOException {
+        if (sendToDaemon(new String[] {"daemon", "stop"}) == null) {
+            System.err.println("Error: No daemon is running");
+        }
+    }
+
+    private static int serveRequest(Path tigDir, String[] request, DataOutputStream reply) throws IOException {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        PrintStream requestOut = new PrintStream(new BufferedOutputStream(new FrameOutputStream(reply, DAEMON_STDOUT)), true);
+        PrintStream requestErr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(reply, DAEMON_STDERR)), true);
+        System.setOut(requestOut);
+        System.setErr(requestErr);
+        // The global options of a request apply to that request only, not to the daemon itself
+        boolean daemonUseCache = useCache;
+        boolean daemonReportCacheStats = reportCacheStats;
+        boolean daemonProfile = profile;
+        int daemonParallelism = parallelism;
+        try {
+            refreshDaemonCaches(tigDir);
+            run(request);
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error: " + e);
+            return 1;
+        } finally {
+            useCache = daemonUseCache;
+            reportCacheStats = daemonReportCacheStats;
+            profile = daemonProfile;
+            parallelism = daemonParallelism;
+            requestOut.flush();
+            requestErr.flush();
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    // Drops the in-memory state another process may have replaced on disk since the last request.
+    // Commits and manifests are immutable and need no check.
+    private static void refreshDaemonCaches(Path tigDir) throws IOException {
+        Path indexFile = tigDir.resolve(INDEX_FILE);
+        long indexFileMtime = Files.exists(indexFile) ? Files.getLastModifiedTime(indexFile).to(TimeUnit.NANOSECONDS) : Long.MIN_VALUE;
+        if (index != null && !indexDirty && indexFileMtime != indexMtime) {
+            index = null;
+        }
+        Path packDir = tigDir.resolve(PACKS_DIR);
+        long packDirMtime = Files.isDirectory(packDir) ? Files.getLastModifiedTime(packDir).to(TimeUnit.NANOSECONDS) : Long.MIN_VALUE;
+        if (packs != null && packDirMtime != packsMtime) {
+            closePacks();
+        }
+    }
+
+    // Frames everything written to it as one stream of a daemon reply
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream reply;
+        private final byte stream;
+
+        FrameOutputStream(DataOutputStream reply, byte stream) {
+            this.reply = reply;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (reply) {
+                reply.writeByte(stream);
+                reply.writeInt(len);
+                reply.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (reply) {
+                reply.flush();
+            }
+        }
     }
 
     private static void init(String repoPathStr) throws IOException {
@@ -98,131 +686,161 @@ public class Tig {
             System.out.println("Initialized empty repository in: " + tigDir.toAbsolutePath());
         }
     
-        Path commitsFile = tigDir.resolve(COMMIT_FILE);
-        if (!Files.exists(commitsFile)) {
-            Files.createFile(commitsFile);
-            System.out.println("Created commits file: " + commitsFile.toAbsolutePath());
+        Path commitLog = tigDir.resolve(COMMIT_LOG_FILE);
+        if (!Files.exists(commitLog) && !Files.exists(tigDir.resolve(LEGACY_COMMIT_FILE))) {
+            Files.createFile(commitLog);
+            Files.createFile(tigDir.resolve(COMMIT_INDEX_FILE));
+            Files.createFile(tigDir.resolve(COMMIT_IDS_FILE));
+            System.out.println("Created commits file: " + commitLog.toAbsolutePath());
         }
     }
 
-    private static void add(String fileName) throws IOException {
+    // Stages files, whole directories (recursively), glob patterns matched against repository-relative
+    // paths, or with -A every file in the working tree. All of them are hashed in parallel and appended
+    // to the staging journal in one write.
+    private static void add(List<String> paths) throws IOException {
         Path repoPath = Paths.get(System.getProperty("user.dir"));
         Path tigDir = repoPath.resolve(".tig");
-        Path stagedFile = tigDir.resolve(STAGED_FILE);
         Path tigignorePath = tigDir.resolve(TIGIGNORE_FILE);
 
-        Set<String> ignoredFiles = loadTigignore(tigignorePath);
+        IgnoreMatcher ignoredFiles = loadTigignore(tigignorePath);
+        SortedMap<String, String> toStage = new ConcurrentSkipListMap<>();
+        List<String> files = new ArrayList<>();
 
-        if (ignoredFiles.contains(fileName)) {
-            System.err.println("Error: File is ignored: " + fileName);
-            return;
+        for (String fileName : paths) {
+            if (fileName.equals("-A") || fileName.equals("--all")) {
+                toStage.putAll(scanWorkingTree(repoPath, tigDir, ignoredFiles));
+                continue;
+            }
+            if (isGlob(fileName)) {
+                SortedMap<String, String> matched = scanTree(repoPath, repoPath, tigDir, ignoredFiles, PathSpec.of(List.of(fileName)));
+                if (matched.isEmpty()) {
+                    System.err.println("Error: No files match: " + fileName);
+                }
+                toStage.putAll(matched);
+                continue;
+            }
+
+            Path filePath = repoPath.resolve(fileName).normalize();
+            String relativePath = repoPath.relativize(filePath).toString();
+            if (!Files.exists(filePath)) {
+                System.err.println("Error: File does not exist: " + fileName);
+            } else if (!relativePath.isEmpty() && ignoredFiles.isIgnoredPath(relativePath, Files.isDirectory(filePath))) {
+                System.err.println("Error: File is ignored: " + fileName);
+            } else if (Files.isDirectory(filePath)) {
+                toStage.putAll(scanTree(repoPath, filePath, tigDir, ignoredFiles, PathSpec.ALL));
+            } else {
+                files.add(relativePath);
+            }
+        }
+        if (useCache) {
+            loadIndex(tigDir);
         }
+        forEachParallel(files, relativePath -> toStage.put(relativePath, cachedHash(tigDir, relativePath, repoPath.resolve(relativePath))));
 
-        Path filePath = repoPath.resolve(fileName);
-        if (!Files.exists(filePath)) {
-            System.err.println("Error: File does not exist: " + fileName);
+        // Leave out what would change nothing: files staged with this content already, or not staged
+        // and identical to HEAD, so `add -A` on a large tree only stages what was edited
+        Map<String, String> staged = loadStaged(tigDir);
+        String head = readHead(tigDir);
+        Map<String, String> committed = head == null ? Collections.emptyMap() : loadManifest(tigDir, head);
+        toStage.entrySet().removeIf(entry -> staged.containsKey(entry.getKey())
+                ? staged.get(entry.getKey()).equals(entry.getValue())
+                : entry.getValue().equals(committed.get(entry.getKey())));
+        if (toStage.isEmpty()) {
             return;
         }
 
-        String fileHash = calculateHash(filePath);
-        Map<String, String> stagedFiles = loadCsvToMap(stagedFile.toString());
-        stagedFiles.put(fileName, fileHash);
-        saveMapToCsv(stagedFile.toString(), stagedFiles);
+        appendStaged(tigDir, toStage);
 
-        System.out.println("File staged: " + fileName);
+        for (String fileName : toStage.keySet()) {
+            System.out.println("File staged: " + fileName);
+        }
+    }
+
+    private static boolean isGlob(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0 || path.indexOf('{') >= 0;
     }
 
     private static void commit(String message) throws IOException {
         Path repoPath = Paths.get(System.getProperty("user.dir"));
         Path tigDir = repoPath.resolve(".tig");
-        Path stagedFile = tigDir.resolve(STAGED_FILE);
-        Path commitsFile = tigDir.resolve(COMMIT_FILE);
-    
-        Map<String, String> stagedFiles = loadCsvToMap(stagedFile.toString());
-        if (stagedFiles.isEmpty()) {
+        if (!Files.exists(tigDir.resolve(STAGED_FILE))) {
             System.err.println("No files staged for commit.");
             return;
         }
-    
-        String commitId = UUID.randomUUID().toString().substring(0, 16);
-        Path commitDir = tigDir.resolve(commitId);
-        Files.createDirectory(commitDir);
-    
-        for (Map.Entry<String, String> entry : stagedFiles.entrySet()) {
-            Path sourcePath = repoPath.resolve(entry.getKey());
-            Path destPath = commitDir.resolve(entry.getValue() + ".bck");
-            Files.copy(sourcePath, destPath);
+
+        // Hold the staging lock for the whole commit so that an add running alongside lands either in
+        // this commit or in a fresh journal, never in one that is about to be dropped
+        try (FileChannel lock = lockStaging(tigDir, false)) {
+            Map<String, String> stagedFiles = readStaged(tigDir);
+            if (stagedFiles.isEmpty()) {
+                System.err.println("No files staged for commit.");
+                return;
+            }
+            commit(repoPath, tigDir, message, stagedFiles);
+            clearStaged(tigDir, lock);
         }
+    }
+
+    private static void commit(Path repoPath, Path tigDir, String message, Map<String, String> stagedFiles) throws IOException {
+        migrateCommitDirs(tigDir);
+        String commitId = UUID.randomUUID().toString().substring(0, COMMIT_ID_LEN);
     
-        try (BufferedWriter writer = Files.newBufferedWriter(commitsFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-            String fileHashes = String.join(" ", stagedFiles.values());
-            writer.write(String.join(",", commitId, Instant.now().toString(), message, String.join(" ", stagedFiles.keySet()), fileHashes));
-            writer.newLine();
+        String parent = readHead(tigDir);
+        SortedMap<String, String> manifest = parent == null ? new TreeMap<>() : new TreeMap<>(loadManifest(tigDir, parent));
+
+        // A commit records only the files whose content differs from the parent
+        Map<String, String> committedFiles = new LinkedHashMap<>();
+        for (String fileName : stagedFiles.keySet()) {
+            String hash = storeObject(tigDir, fileName, repoPath.resolve(fileName));
+            if (!hash.equals(manifest.get(fileName))) {
+                committedFiles.put(fileName, hash);
+            }
         }
-    
-        Files.delete(stagedFile);
+        if (committedFiles.isEmpty()) {
+            System.out.println("No changes to commit.");
+            return;
+        }
+        manifest.putAll(committedFiles);
+        appendCommit(tigDir, new Commit(commitId, Instant.now().toString(), message, parent == null ? "" : parent, committedFiles));
+        writeManifest(tigDir, commitId, manifest);
+        updateHistory(tigDir);
+        writeHead(tigDir, commitId);
         System.out.println("Committed changes with ID: " + commitId);
     }
 
-    private static void status(String repoPathStr) throws IOException {
+    private static void status(String repoPathStr, PathSpec paths) throws IOException {
         Path repoPath = Paths.get(repoPathStr);
         Path tigDir = repoPath.resolve(".tig");
-        Path stagedFile = tigDir.resolve(STAGED_FILE);
         Path tigignorePath = tigDir.resolve(TIGIGNORE_FILE);
-        Path commitsFile = tigDir.resolve(COMMIT_FILE);
-    
-        Set<String> ignoredFiles = loadTigignore(tigignorePath);
-        Map<String, String> stagedFiles = loadCsvToMap(stagedFile.toString());
-        List<Path> workingFiles = Files.walk(repoPath)
-                .filter(Files::isRegularFile)
-                .filter(file -> !file.startsWith(tigDir))
-                .collect(Collectors.toList());
     
-        List<String> allCommittedFiles = new ArrayList<>();
-        List<String> allCommittedHashes = new ArrayList<>();
-
-        // Building commit state
-        try (BufferedReader reader = Files.newBufferedReader(commitsFile)) {
-            String line;
-
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length > 2) {
-                    allCommittedFiles.addAll(Arrays.asList(parts[3].split(" ")));
-                    allCommittedHashes.addAll(Arrays.asList(parts[4].split(" ")));
-                }
-            }
-        }
-
-        Map<String, String> dictionary = new HashMap<>();
-        Map<String, String> flippedDict = new HashMap<>();
-        for (int i = 0; i < Math.min(allCommittedHashes.size(), allCommittedFiles.size()); i++) {
-            dictionary.put(allCommittedHashes.get(i), allCommittedFiles.get(i));
-        }
-        for (Map.Entry<String, String> entry : dictionary.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            flippedDict.put(value, key);
+        IgnoreMatcher ignoredFiles = loadTigignore(tigignorePath);
+        Map<String, String> stagedFiles = loadStaged(tigDir);
+        // Only the sparse checkout and the paths asked for are walked
+        PathSpec include = PathSpec.both(loadSparse(tigDir), paths);
+        SortedMap<String, String> workingFiles;
+        if (watcher != null && watcher.repoPath.equals(repoPath)) {
+            workingFiles = new TreeMap<>(watcher.refresh());
+            workingFiles.keySet().removeIf(path -> !include.matches(path));
+        } else {
+            workingFiles = scanTree(repoPath, repoPath, tigDir, ignoredFiles, include);
         }
-
-        List<String> committedHashes = new ArrayList<>(flippedDict.values());
-        List<String> committedFiles = new ArrayList<>(flippedDict.keySet());
     
-        for (Path file : workingFiles) {
-            String relativePath = repoPath.relativize(file).toString();
-            if (ignoredFiles.contains(relativePath)) {
-                continue;
-            }
-            
-            String fileHash = calculateHash(file);
+        // Committed state is the snapshot of the checked out commit
+        String head = readHead(tigDir);
+        SortedMap<String, String> committedFiles = head == null ? Collections.emptySortedMap() : loadManifest(tigDir, head);
+    
+        for (Map.Entry<String, String> file : workingFiles.entrySet()) {
+            String relativePath = file.getKey();
+            String fileHash = file.getValue();
             if (stagedFiles.containsKey(relativePath)) {
                 if (stagedFiles.get(relativePath).equals(fileHash)) {
                     System.out.println("Staged: " + relativePath);
                 } else {
                     System.out.println("Modified (staged): " + relativePath);
                 }
-            } else if (committedFiles.contains(relativePath)) {
-                if (committedHashes.contains(fileHash)) {
+            } else if (committedFiles.containsKey(relativePath)) {
+                if (committedFiles.get(relativePath).equals(fileHash)) {
                     System.out.println("Committed: " + relativePath);
                 } else {
                     System.out.println("Modified and not staged: " + relativePath);
@@ -231,333 +849,3666 @@ public class Tig {
                 System.out.println("Untracked: " + relativePath);
             }
         }
+
+        pruneIndex(tigDir, include, workingFiles.keySet());
     }
 
-    private static Set<String> loadTigignore(Path tigignorePath) throws IOException {
-        if (!Files.exists(tigignorePath)) {
-            return Collections.emptySet();
+    // Prints the status, then again every time the working tree, the staging area or HEAD changes,
+    // until interrupted
+    private static void watchStatus(String repoPathStr, PathSpec paths) throws IOException {
+        try (TreeWatcher treeWatcher = new TreeWatcher(Paths.get(repoPathStr))) {
+            watcher = treeWatcher;
+            while (true) {
+                status(repoPathStr, paths);
+                saveIndex();
+                System.out.flush();
+                treeWatcher.await();
+                System.out.println();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watcher = null;
         }
-
-        return Files.lines(tigignorePath)
-                .map(String::trim)
-                .filter(line -> !line.isEmpty())
-                .collect(Collectors.toSet());
     }
 
-    private static void checkout(String commitId) throws IOException {
-        Path repoPath = Paths.get(System.getProperty("user.dir"));
-        Path tigDir = repoPath.resolve(".tig");
-        Path commitDir = tigDir.resolve(commitId);
-        Path commitsFile = tigDir.resolve(COMMIT_FILE);
+    // Keeps a hashed snapshot of the working tree current from WatchService events, so status only
+    // rehashes the paths that changed since it last ran. Ignored directories are not watched, same as
+    // they are not walked. An overflow or a change to .tigignore falls back to a full rescan.
+    private static final class TreeWatcher implements Closeable {
+        private final Path repoPath;
+        private final Path tigDir;
+        private final WatchService service;
+        private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+        private final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+        private final Set<String> dirty = new HashSet<>();
+        private SortedMap<String, String> snapshot;
+        private boolean rescan = true;
 
-        if (!Files.exists(commitDir)) {
-            System.err.println("Error: Commit ID not found: " + commitId);
-            return;
+        TreeWatcher(Path repoPath) throws IOException {
+            this.repoPath = repoPath;
+            this.tigDir = repoPath.resolve(".tig");
+            this.service = repoPath.getFileSystem().newWatchService();
+            // Only watched for the staging area, HEAD and .tigignore
+            keys.put(tigDir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), tigDir);
         }
 
-        Files.list(commitDir).filter(Files::isRegularFile).forEach(file -> {
-            try {
-                List<String> committedFiles = new ArrayList<>();
-                List<String> committedHashes = new ArrayList<>();
-
-                try (BufferedReader reader = Files.newBufferedReader(commitsFile)) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        String[] parts = line.split(",");
-                        if (parts.length > 0 && parts[0].equals(commitId)) {
-                            committedFiles.addAll(Arrays.asList(parts[3].split(" ")));
-                            committedHashes.addAll(Arrays.asList(parts[4].split(" ")));
-                        }
+        // Blocks until something status reports on may have changed, then lets a burst of writes settle
+        void await() throws InterruptedException {
+            boolean changed = false;
+            while (!changed) {
+                changed = drain(service.take());
+            }
+            WatchKey key;
+            while ((key = service.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                drain(key);
+            }
+        }
+
+        synchronized SortedMap<String, String> refresh() throws IOException {
+            WatchKey key;
+            while ((key = service.poll()) != null) {
+                drain(key);
+            }
+            IgnoreMatcher ignoredFiles = loadTigignore(tigDir.resolve(TIGIGNORE_FILE));
+            if (rescan) {
+                rescan = false;
+                dirty.clear();
+                keys.entrySet().removeIf(entry -> {
+                    if (entry.getValue().equals(tigDir)) {
+                        return false;
+                    }
+                    entry.getKey().cancel();
+                    return true;
+                });
+                watchedDirs.clear();
+                // Register before scanning so that nothing changed during the scan goes unnoticed
+                register(repoPath, ignoredFiles);
+                snapshot = new ConcurrentSkipListMap<>(scanWorkingTree(repoPath, tigDir, ignoredFiles));
+                return snapshot;
+            }
+
+            List<String> changed = new ArrayList<>(dirty);
+            dirty.clear();
+            forEachParallel(changed, relativePath -> update(relativePath, ignoredFiles));
+            return snapshot;
+        }
+
+        // Returns whether the events matter to status; writes to the stat cache and the like do not
+        private boolean drain(WatchKey key) {
+            Path dir = keys.get(key);
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan = true;
+                    changed = true;
+                } else if (dir != null && dir.equals(tigDir)) {
+                    String name = event.context().toString();
+                    if (name.equals(TIGIGNORE_FILE)) {
+                        rescan = true;
                     }
+                    changed |= name.equals(TIGIGNORE_FILE) || name.equals(STAGED_FILE) || name.equals(HEAD_FILE);
+                } else if (dir != null) {
+                    dirty.add(repoPath.relativize(dir.resolve((Path) event.context())).toString());
+                    changed = true;
                 }
-                Map<String, String> dictionary = new HashMap<>();
-                for (int i = 0; i < Math.min(committedHashes.size(), committedFiles.size()); i++) {
-                    dictionary.put(committedHashes.get(i), committedFiles.get(i));
+            }
+            if (!key.reset()) {
+                keys.remove(key);
+                if (dir != null) {
+                    watchedDirs.remove(dir);
                 }
-                String hashName = file.getFileName().toString().split("\\.")[0];
-                String originalName = dictionary.get(hashName);
-                Path destPath = repoPath.resolve(originalName);
-                Files.copy(file, destPath, StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                e.printStackTrace();
             }
-        });
-
-        System.out.println("Checked out commit: " + commitId);
-    }
+            return changed;
+        }
 
-    private static void log(String... args) throws IOException {
-        Path currentPath = Paths.get(System.getProperty("user.dir"));
-        
-        if (!currentPath.endsWith(REPO_DIR)) {
-            currentPath = currentPath.resolve(REPO_DIR);
+        private void update(String relativePath, IgnoreMatcher ignoredFiles) throws IOException {
+            Path path = repoPath.resolve(relativePath);
+            boolean directory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+            if (directory && !ignoredFiles.isIgnored(relativePath, true)) {
+                // A directory that appeared (or was moved in) is watched and scanned as a whole
+                if (!watchedDirs.contains(path)) {
+                    register(path, ignoredFiles);
+                    snapshot.putAll(scanTree(repoPath, path, tigDir, ignoredFiles, PathSpec.ALL));
+                }
+            } else if (!directory && Files.isRegularFile(path) && !ignoredFiles.isIgnored(relativePath, false)) {
+                snapshot.put(relativePath, cachedHash(tigDir, relativePath, path));
+            } else {
+                // Deleted, moved away or now ignored; a directory takes everything below it along
+                snapshot.remove(relativePath);
+                snapshot.subMap(relativePath + "/", relativePath + "0").clear();
+            }
         }
-        
-        Path tigDir = currentPath.resolve(".tig");
-        Path commitsFile = tigDir.resolve(COMMIT_FILE);
-    
-    
-        if (!Files.exists(commitsFile)) {
-            System.out.println("there are no commits found.");
-            return;
+
+        private void register(Path start, IgnoreMatcher ignoredFiles) throws IOException {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    String relativePath = repoPath.relativize(dir).toString();
+                    if (dir.equals(tigDir) || (!relativePath.isEmpty() && ignoredFiles.isIgnored(relativePath, true))) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (watchedDirs.add(dir)) {
+                        keys.put(dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                                StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Gone again before we got to it; its delete event is on the way
+                    return FileVisitResult.CONTINUE;
+                }
+            });
         }
-    
-        List<String> commits = Files.lines(commitsFile).collect(Collectors.toList());
-    
-        //commits.forEach(System.out::println);
-    
-        if (commits.isEmpty()) {
-            System.out.println("No commits found.");
-            return;
+
+        @Override
+        public void close() throws IOException {
+            service.close();
         }
-    
-        int n = 5; // default value
-    
-        if (args.length >= 1) {
-            n = Integer.parseInt(args[0].substring(1)); 
+    }
+
+    // Walks the working tree and hashes its files on a bounded fork-join pool. The result is keyed
+    // by relative path and sorted, so output order does not depend on thread scheduling.
+    private static SortedMap<String, String> scanWorkingTree(Path repoPath, Path tigDir, IgnoreMatcher ignoredFiles) throws IOException {
+        return scanTree(repoPath, repoPath, tigDir, ignoredFiles, PathSpec.ALL);
+    }
+
+    // Same as scanWorkingTree, starting at a subdirectory and only walking into the directories and
+    // hashing the files selected by `include`
+    private static SortedMap<String, String> scanTree(Path repoPath, Path start, Path tigDir, IgnoreMatcher ignoredFiles, PathSpec include) throws IOException {
+        if (useCache) {
+            loadIndex(tigDir);
         }
-    
-        int start = Math.max(0, commits.size() - n);
-        for (int i = commits.size() - 1; i >= start; i--) {
-            System.out.println();
-            String[] parts = commits.get(i).split(",");
-            System.out.println("Commit ID: " + parts[0]);
-            System.out.println("Date: " + parts[1]);
-            System.out.println("Message: " + parts[2]);
-            System.out.println();
+
+        SortedMap<String, String> result = new ConcurrentSkipListMap<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        PhaseTimer timer = Phase.WALK.start();
+        try {
+            pool.invoke(new ScanTask(repoPath, start, tigDir, ignoredFiles, include, result));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
         }
+        timer.end(repoPath.relativize(start).toString(), result.size(), 0);
+        return result;
     }
-    
-    private static void diff(String fileName) throws IOException {
-        Path repoPath = Paths.get(System.getProperty("user.dir"));
-        Path tigDir = repoPath.resolve(".tig");
-        Path commitsFile = tigDir.resolve(COMMIT_FILE);
-    
-        if (!Files.exists(commitsFile)) {
-            System.out.println("Error: There are no commits done. Commit a file first.");
-            return;
+
+    private static final class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path repoPath;
+        private final Path path;
+        private final Path tigDir;
+        private final IgnoreMatcher ignoredFiles;
+        private final PathSpec include;
+        private final SortedMap<String, String> result;
+
+        ScanTask(Path repoPath, Path path, Path tigDir, IgnoreMatcher ignoredFiles, PathSpec include, SortedMap<String, String> result) {
+            this.repoPath = repoPath;
+            this.path = path;
+            this.tigDir = tigDir;
+            this.ignoredFiles = ignoredFiles;
+            this.include = include;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                boolean directory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+                String relativePath = repoPath.relativize(path).toString();
+                // Ignored directories are pruned here, so nothing below them is ever listed
+                if (!path.equals(repoPath) && ignoredFiles.isIgnored(relativePath, directory)) {
+                    return;
+                }
+                if (directory && !path.equals(repoPath) && !include.mayContain(relativePath)) {
+                    return;
+                }
+                if (directory) {
+                    List<ScanTask> subtasks = new ArrayList<>();
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                        for (Path entry : entries) {
+                            if (!entry.startsWith(tigDir)) {
+                                subtasks.add(new ScanTask(repoPath, entry, tigDir, ignoredFiles, include, result));
+                            }
+                        }
+                    }
+                    invokeAll(subtasks);
+                } else if (Files.isRegularFile(path)) {
+                    if (include.matches(relativePath)) {
+                        result.put(relativePath, cachedHash(tigDir, relativePath, path));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static synchronized IgnoreMatcher loadTigignore(Path tigignorePath) throws IOException {
+        if (!Files.exists(tigignorePath)) {
+            return new IgnoreMatcher(new IgnoreRule[0]);
+        }
+        long mtime = Files.getLastModifiedTime(tigignorePath).to(TimeUnit.NANOSECONDS);
+        if (ignoreMatcher != null && tigignorePath.equals(ignorePath) && mtime == ignoreMtime) {
+            return ignoreMatcher;
+        }
+
+        List<IgnoreRule> rules = new ArrayList<>();
+        for (String line : Files.readAllLines(tigignorePath)) {
+            IgnoreRule rule = compileIgnoreRule(line);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        ignorePath = tigignorePath;
+        ignoreMtime = mtime;
+        ignoreMatcher = new IgnoreMatcher(rules.toArray(new IgnoreRule[0]));
+        return ignoreMatcher;
+    }
+
+    // A .tigignore line compiled once: literal patterns are compared as strings, everything else
+    // becomes a regex. Unanchored patterns (no slash except a trailing one) match the file name at
+    // any depth, anchored ones match the whole path relative to the repository root.
+    private record IgnoreRule(boolean negated, boolean directoryOnly, boolean anchored, String literal, Pattern pattern) {
+        boolean matches(String relativePath, String name, boolean directory) {
+            if (directoryOnly && !directory) {
+                return false;
+            }
+            String subject = anchored ? relativePath : name;
+            return literal != null ? literal.equals(subject) : pattern.matcher(subject).matches();
+        }
+    }
+
+    private record IgnoreMatcher(IgnoreRule[] rules) {
+        // As in gitignore the last matching rule decides, so a later "!pattern" re-includes a path.
+        // Callers walking the tree only ask about the entry itself since its parents were checked already.
+        boolean isIgnored(String relativePath, boolean directory) {
+            String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+            for (int i = rules.length - 1; i >= 0; i--) {
+                if (rules[i].matches(relativePath, name, directory)) {
+                    return !rules[i].negated();
+                }
+            }
+            return false;
+        }
+
+        // For a path given on the command line: a file inside an ignored directory is ignored too
+        boolean isIgnoredPath(String relativePath, boolean directory) {
+            for (int slash = relativePath.indexOf('/'); slash >= 0; slash = relativePath.indexOf('/', slash + 1)) {
+                if (isIgnored(relativePath.substring(0, slash), true)) {
+                    return true;
+                }
+            }
+            return isIgnored(relativePath, directory);
+        }
+    }
+
+    private static IgnoreRule compileIgnoreRule(String line) {
+        String pattern = line.strip();
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return null;
+        }
+        boolean negated = pattern.startsWith("!");
+        if (negated || pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+            pattern = pattern.substring(1);
+        }
+        boolean directoryOnly = pattern.endsWith("/");
+        while (pattern.endsWith("/")) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        boolean anchored = pattern.indexOf('/') >= 0;
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        if (pattern.startsWith("**/") && pattern.indexOf('/', 3) < 0) {
+            // "**/name" is the same as an unanchored "name"
+            pattern = pattern.substring(3);
+            anchored = false;
+        }
+        if (pattern.isEmpty()) {
+            return null;
+        }
+
+        if (!isGlob(pattern) && pattern.indexOf('\\') < 0) {
+            return new IgnoreRule(negated, directoryOnly, anchored, pattern, null);
+        }
+        return new IgnoreRule(negated, directoryOnly, anchored, null, Pattern.compile(globToRegex(pattern)));
+    }
+
+    // Paths given on the command line or listed in .tig/sparse. A plain path selects that file or
+    // everything below that directory; a path with glob characters is matched against the whole
+    // relative path. `and` narrows the selection further, e.g. command line paths within a sparse checkout.
+    private record PathSpec(boolean everything, List<String> prefixes, List<Pattern> patterns, List<String> patternRoots, PathSpec and) {
+        static final PathSpec ALL = new PathSpec(true, List.of(), List.of(), List.of(), null);
+
+        static PathSpec of(List<String> specs) {
+            List<String> prefixes = new ArrayList<>();
+            List<Pattern> patterns = new ArrayList<>();
+            List<String> patternRoots = new ArrayList<>();
+            for (String spec : specs) {
+                String path = Paths.get(spec).normalize().toString();
+                if (path.isEmpty() || path.equals(".")) {
+                    return ALL;
+                }
+                if (isGlob(path)) {
+                    patterns.add(Pattern.compile(globToRegex(path)));
+                    // The directories before the first glob character are the only place matches can be
+                    int firstGlob = 0;
+                    while (!isGlob(path.substring(0, firstGlob + 1))) {
+                        firstGlob++;
+                    }
+                    int slash = path.lastIndexOf('/', firstGlob);
+                    patternRoots.add(slash < 0 ? "" : path.substring(0, slash));
+                } else {
+                    prefixes.add(path);
+                }
+            }
+            return specs.isEmpty() ? ALL : new PathSpec(false, prefixes, patterns, patternRoots, null);
+        }
+
+        static PathSpec both(PathSpec first, PathSpec second) {
+            if (second == null || second.everything()) {
+                return first;
+            }
+            if (first.everything()) {
+                return second;
+            }
+            return new PathSpec(false, first.prefixes(), first.patterns(), first.patternRoots(), second);
+        }
+
+        boolean matches(String path) {
+            return matchesOwn(path) && (and == null || and.matches(path));
+        }
+
+        private boolean matchesOwn(String path) {
+            if (everything) {
+                return true;
+            }
+            for (String prefix : prefixes) {
+                if (isWithin(path, prefix)) {
+                    return true;
+                }
+            }
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(path).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Whether the directory can hold selected paths at all; the walk does not enter it otherwise
+        boolean mayContain(String dir) {
+            return mayContainOwn(dir) && (and == null || and.mayContain(dir));
+        }
+
+        private boolean mayContainOwn(String dir) {
+            if (everything) {
+                return true;
+            }
+            for (String prefix : prefixes) {
+                if (isWithin(dir, prefix) || isWithin(prefix, dir)) {
+                    return true;
+                }
+            }
+            for (String root : patternRoots) {
+                if (root.isEmpty() || isWithin(dir, root) || isWithin(root, dir)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // The selected entries of a sorted path map, in order. Plain paths jump straight to their
+        // subtrees, so a few directories of a large manifest cost only what they contain.
+        List<Map.Entry<String, String>> select(SortedMap<String, String> map) {
+            if (everything && and == null) {
+                return new ArrayList<>(map.entrySet());
+            }
+            if (everything || !patterns.isEmpty()) {
+                List<Map.Entry<String, String>> selected = new ArrayList<>();
+                for (Map.Entry<String, String> entry : map.entrySet()) {
+                    if (matches(entry.getKey())) {
+                        selected.add(entry);
+                    }
+                }
+                return selected;
+            }
+            SortedMap<String, String> selected = new TreeMap<>();
+            for (String prefix : prefixes) {
+                String hash = map.get(prefix);
+                if (hash != null) {
+                    selected.put(prefix, hash);
+                }
+                selected.putAll(map.subMap(prefix + "/", prefix + "0"));
+            }
+            if (and != null) {
+                selected.keySet().removeIf(path -> !and.matches(path));
+            }
+            return new ArrayList<>(selected.entrySet());
+        }
+
+        private static boolean isWithin(String path, String dir) {
+            return path.equals(dir) || (path.startsWith(dir) && path.charAt(dir.length()) == '/');
+        }
+    }
+
+    // Paths from args[from] on, skipping a "--" separator; null if there are none
+    private static PathSpec pathSpecArgs(String[] args, int from) {
+        List<String> specs = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            if (!args[i].equals("--")) {
+                specs.add(args[i]);
+            }
+        }
+        return specs.isEmpty() ? null : PathSpec.of(specs);
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int alternations = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            // "**/" matches zero or more directories
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[': {
+                    int end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                    break;
+                }
+                case '{':
+                    // "{java,kt}" matches either alternative; a brace that is never closed is literal
+                    if (closingBrace(glob, i) < 0) {
+                        appendLiteral(regex, c);
+                    } else {
+                        regex.append("(?:");
+                        alternations++;
+                    }
+                    break;
+                case ',':
+                    if (alternations > 0) {
+                        regex.append('|');
+                    } else {
+                        appendLiteral(regex, c);
+                    }
+                    break;
+                case '}':
+                    if (alternations > 0) {
+                        regex.append(')');
+                        alternations--;
+                    } else {
+                        appendLiteral(regex, c);
+                    }
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        appendLiteral(regex, glob.charAt(++i));
+                    }
+                    break;
+                default:
+                    appendLiteral(regex, c);
+            }
+        }
+        return regex.toString();
+    }
+
+    private static int closingBrace(String glob, int open) {
+        int depth = 0;
+        for (int i = open; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+        if ("\\.[]{}()<>*+-=!?^$|".indexOf(c) >= 0) {
+            regex.append('\\');
+        }
+        regex.append(c);
+    }
+
+    // .tig/sparse lists the paths (one per line, directories or globs) that checkout and status work on;
+    // without the file the whole tree is checked out
+    private static PathSpec loadSparse(Path tigDir) throws IOException {
+        List<String> patterns = readSparsePatterns(tigDir);
+        return patterns == null ? PathSpec.ALL : PathSpec.of(patterns);
+    }
+
+    private static List<String> readSparsePatterns(Path tigDir) throws IOException {
+        Path sparseFile = tigDir.resolve(SPARSE_FILE);
+        if (!Files.exists(sparseFile)) {
+            return null;
+        }
+        List<String> patterns = new ArrayList<>();
+        for (String line : Files.readAllLines(sparseFile)) {
+            line = line.strip();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                patterns.add(line);
+            }
+        }
+        return patterns;
+    }
+
+    private static void sparse(String[] args) throws IOException {
+        Path repoPath = Paths.get(System.getProperty("user.dir"));
+        Path tigDir = repoPath.resolve(".tig");
+        if (!Files.isDirectory(tigDir)) {
+            System.err.println("Error: Not a tig repository: " + repoPath);
+            return;
+        }
+
+        String action = args.length == 0 ? "list" : args[0];
+        List<String> patterns = readSparsePatterns(tigDir);
+        List<String> given = Arrays.asList(args).subList(Math.min(1, args.length), args.length);
+        switch (action) {
+            case "list":
+                if (patterns == null) {
+                    System.out.println("Sparse checkout is disabled.");
+                } else {
+                    patterns.forEach(System.out::println);
+                }
+                return;
+
+            case "set":
+                patterns = new ArrayList<>(given);
+                break;
+
+            case "add":
+                patterns = patterns == null ? new ArrayList<>() : patterns;
+                patterns.addAll(given);
+                break;
+
+            case "disable":
+                patterns = null;
+                break;
+
+            default:
+                patterns = Collections.emptyList();
+        }
+        if (patterns != null && patterns.isEmpty()) {
+            System.err.println("Usage: java Tig sparse [list] | set <path>... | add <path>... | disable");
+            return;
+        }
+
+        PathSpec before = loadSparse(tigDir);
+        if (patterns == null) {
+            Files.deleteIfExists(tigDir.resolve(SPARSE_FILE));
+        } else {
+            Files.write(tigDir.resolve(SPARSE_FILE), patterns);
+        }
+        applySparse(repoPath, tigDir, before, loadSparse(tigDir));
+    }
+
+    // Brings the working tree in line with a changed sparse checkout: files of HEAD that came into it
+    // are restored, unmodified files that left it are removed
+    private static void applySparse(Path repoPath, Path tigDir, PathSpec before, PathSpec after) throws IOException {
+        String head = readHead(tigDir);
+        if (head == null) {
+            System.out.println("Sparse checkout updated.");
+            return;
+        }
+        migrateCommitDirs(tigDir);
+        if (useCache) {
+            loadIndex(tigDir);
+        }
+
+        List<Map.Entry<String, String>> entering = new ArrayList<>();
+        List<Map.Entry<String, String>> leaving = new ArrayList<>();
+        for (Map.Entry<String, String> entry : loadManifest(tigDir, head).entrySet()) {
+            boolean wasIncluded = before.matches(entry.getKey());
+            boolean isIncluded = after.matches(entry.getKey());
+            if (isIncluded && !wasIncluded) {
+                entering.add(entry);
+            } else if (wasIncluded && !isIncluded) {
+                leaving.add(entry);
+            }
+        }
+
+        AtomicInteger restored = new AtomicInteger();
+        AtomicInteger removed = new AtomicInteger();
+        forEachParallel(entering, entry -> {
+            // A file already there was kept because it was modified; it is the user's, not ours to restore
+            Path file = repoPath.resolve(entry.getKey());
+            if (Files.exists(file)) {
+                return;
+            }
+            restoreObject(tigDir, entry.getValue(), file);
+            recordHash(tigDir, entry.getKey(), file, entry.getValue());
+            restored.incrementAndGet();
+        });
+        forEachParallel(leaving, entry -> {
+            Path file = repoPath.resolve(entry.getKey());
+            if (!Files.isRegularFile(file)) {
+                return;
+            }
+            if (entry.getValue().equals(cachedHash(tigDir, entry.getKey(), file))) {
+                Files.delete(file);
+                removed.incrementAndGet();
+            } else {
+                System.err.println("Kept modified file outside the sparse checkout: " + entry.getKey());
+            }
+        });
+        System.out.println("Sparse checkout updated: restored " + restored.get() + " files, removed " + removed.get());
+    }
+
+    // Only touches files whose content differs from the target commit: every path of the target
+    // manifest is compared with the working file through the stat cache, and only mismatches are
+    // restored, in parallel. Files tracked at HEAD but not in the target are removed if unmodified.
+    // With paths, only the matching files are restored from the commit and HEAD stays where it is.
+    // A sparse checkout limits both forms to the paths in .tig/sparse; everything else is left alone.
+    private static void checkout(String commitId, PathSpec paths) throws IOException {
+        Path repoPath = Paths.get(System.getProperty("user.dir"));
+        Path tigDir = repoPath.resolve(".tig");
+
+        if (findCommit(tigDir, commitId) < 0) {
+            System.err.println("Error: Commit ID not found: " + commitId);
+            return;
+        }
+        migrateCommitDirs(tigDir);
+        PathSpec include = PathSpec.both(loadSparse(tigDir), paths);
+        SortedMap<String, String> target = loadManifest(tigDir, commitId);
+        String head = readHead(tigDir);
+        SortedMap<String, String> current = head == null ? Collections.emptySortedMap() : loadManifest(tigDir, head);
+        if (useCache) {
+            loadIndex(tigDir);
+        }
+
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger restored = new AtomicInteger();
+        AtomicInteger deleted = new AtomicInteger();
+        forEachParallel(include.select(target), entry -> {
+            String path = entry.getKey();
+            String hash = entry.getValue();
+            Path destPath = repoPath.resolve(path);
+            if (Files.isRegularFile(destPath) && hash.equals(cachedHash(tigDir, path, destPath))) {
+                skipped.incrementAndGet();
+                return;
+            }
+            if (!hasObject(tigDir, hash)) {
+                System.err.println("Error: Missing object " + hash + " for " + path);
+                return;
+            }
+            restoreObject(tigDir, hash, destPath);
+            recordHash(tigDir, path, destPath, hash);
+            restored.incrementAndGet();
+        });
+
+        if (paths != null) {
+            System.out.println("Checked out paths from commit: " + commitId);
+            System.out.println("Restored " + restored.get() + " files, skipped " + skipped.get() + " unchanged");
+            return;
+        }
+
+        List<String> removedPaths = new ArrayList<>();
+        for (Map.Entry<String, String> entry : include.select(current)) {
+            if (!target.containsKey(entry.getKey())) {
+                removedPaths.add(entry.getKey());
+            }
+        }
+        forEachParallel(removedPaths, path -> {
+            Path file = repoPath.resolve(path);
+            if (!Files.isRegularFile(file)) {
+                return;
+            }
+            if (current.get(path).equals(cachedHash(tigDir, path, file))) {
+                Files.delete(file);
+                deleted.incrementAndGet();
+            } else {
+                System.err.println("Kept modified file not in commit " + commitId + ": " + path);
+            }
+        });
+
+        writeHead(tigDir, commitId);
+        System.out.println("Checked out commit: " + commitId);
+        System.out.println("Restored " + restored.get() + " files, skipped " + skipped.get() + " unchanged, deleted " + deleted.get());
+    }
+
+    // Writes the blob next to its destination and renames it into place, so an interrupted checkout
+    // never leaves a half-written file. Loose objects are copied with FileChannel.transferTo.
+    // Hard links to the store are deliberately not used: editing the working file in place would
+    // then silently corrupt the stored object.
+    private static void restoreObject(Path tigDir, String hash, Path destPath) throws IOException {
+        PhaseTimer timer = Phase.COPY.start();
+        Path parent = destPath.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, ".tig-", ".tmp");
+        long size;
+        try {
+            Path loose = objectPath(tigDir, hash);
+            if (Files.exists(loose)) {
+                try (FileChannel in = FileChannel.open(loose, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    size = in.size();
+                    for (long position = 0; position < size; ) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            } else {
+                try (InputStream in = openObject(tigDir, hash)) {
+                    size = Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(tmp, destPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        bytesRead.add(size);
+        bytesWritten.add(size);
+        timer.end(destPath.toString(), 1, size);
+    }
+
+    private interface IOAction<T> {
+        void apply(T item) throws IOException;
+    }
+
+    // Runs the action for every item on a pool of `parallelism` threads
+    private static <T> void forEachParallel(List<T> items, IOAction<T> action) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> items.parallelStream().forEach(item -> {
+                try {
+                    action.apply(item);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void log(String... args) throws IOException {
+        Path currentPath = Paths.get(System.getProperty("user.dir"));
+        
+        if (!Files.isDirectory(currentPath.resolve(".tig")) && Files.isDirectory(currentPath.resolve(REPO_DIR).resolve(".tig"))) {
+            currentPath = currentPath.resolve(REPO_DIR);
+        }
+        
+        Path tigDir = currentPath.resolve(".tig");
+    
+        if (!Files.exists(tigDir.resolve(COMMIT_LOG_FILE)) && !Files.exists(tigDir.resolve(LEGACY_COMMIT_FILE))) {
+            System.out.println("there are no commits found.");
+            return;
+        }
+    
+        int commitCount = commitCount(tigDir);
+        if (commitCount == 0) {
+            System.out.println("No commits found.");
+            return;
+        }
+    
+        int n = 5; // default value
+        String fileName = null;
+    
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--")) {
+                fileName = args[++i];
+            } else {
+                n = Integer.parseInt(args[i].substring(1)); 
+            }
+        }
+
+        if (fileName != null) {
+            logFile(tigDir, fileName, n);
+            return;
+        }
+    
+        // Only the last n records of the log are read
+        int start = Math.max(0, commitCount - n);
+        for (int i = commitCount - 1; i >= start; i--) {
+            System.out.println();
+            Commit commit = readCommitAt(tigDir, i);
+            System.out.println("Commit ID: " + commit.id());
+            System.out.println("Date: " + commit.date());
+            System.out.println("Message: " + commit.message());
+            System.out.println();
+        }
+    }
+    
+    // The last n commits reachable from HEAD that changed fileName, newest first, read from its history
+    private static void logFile(Path tigDir, String fileName, int n) throws IOException {
+        HistoryState state = updateHistory(tigDir);
+        int[] history = readHistory(tigDir, fileName);
+        String head = readHead(tigDir);
+        int headSequence = head == null ? -1 : findCommit(tigDir, head);
+        // Once history has forked, reachability has to follow the parents; until then it is just order
+        Set<Integer> reachable = state.linear() ? null : ancestors(tigDir, headSequence);
+
+        int shown = 0;
+        int previous = -1;
+        for (int i = history.length - 1; i >= 0 && shown < n; i--) {
+            int sequence = history[i];
+            if (sequence == previous || sequence > headSequence || (reachable != null && !reachable.contains(sequence))) {
+                continue;
+            }
+            previous = sequence;
+            shown++;
+            Commit commit = readCommitAt(tigDir, sequence);
+            System.out.println();
+            System.out.println("Commit ID: " + commit.id());
+            System.out.println("Date: " + commit.date());
+            System.out.println("Message: " + commit.message());
+            System.out.println();
+        }
+        if (shown == 0) {
+            System.out.println("No commits found for: " + fileName);
+        }
+    }
+
+    private static Set<Integer> ancestors(Path tigDir, int sequence) throws IOException {
+        Set<Integer> ancestors = new HashSet<>();
+        while (sequence >= 0 && ancestors.add(sequence)) {
+            String parent = readCommitAt(tigDir, sequence).parent();
+            sequence = parent.isEmpty() ? -1 : findCommit(tigDir, parent);
+        }
+        return ancestors;
+    }
+
+    // Hash of fileName as of the given commit, or null if it did not exist yet. On linear history that is
+    // the latest entry of the file's history at or before the commit, found by binary search; otherwise
+    // the commit's manifest decides.
+    private static String versionAt(Path tigDir, int sequence, String fileName) throws IOException {
+        HistoryState state = updateHistory(tigDir);
+        if (!state.linear()) {
+            return loadManifest(tigDir, readCommitAt(tigDir, sequence).id()).get(fileName);
+        }
+        int[] history = readHistory(tigDir, fileName);
+        int position = Arrays.binarySearch(history, sequence);
+        int latest = position >= 0 ? position : -position - 2;
+        return latest < 0 ? null : readCommitAt(tigDir, history[latest]).files().get(fileName);
+    }
+
+    private static void diffCommits(String fromId, String toId, String fileName, int context) throws IOException {
+        Path tigDir = Paths.get(System.getProperty("user.dir")).resolve(".tig");
+        int from = findCommit(tigDir, fromId);
+        int to = findCommit(tigDir, toId);
+        if (from < 0 || to < 0) {
+            System.err.println("Error: Commit ID not found: " + (from < 0 ? fromId : toId));
+            return;
+        }
+
+        String fromHash = versionAt(tigDir, from, fileName);
+        String toHash = versionAt(tigDir, to, fileName);
+        if (fromHash == null && toHash == null) {
+            System.out.println("Error: The file: " + fileName + " was not found in either commit.");
+            return;
+        }
+        if (Objects.equals(fromHash, toHash)) {
+            System.out.println("There is no difference between the two versions of the file.");
+            return;
+        }
+
+        migrateCommitDirs(tigDir);
+        Charset fromCharset = StandardCharsets.UTF_8;
+        Charset toCharset = StandardCharsets.UTF_8;
+        if (fromHash != null) {
+            try (InputStream in = openObject(tigDir, fromHash)) {
+                fromCharset = sniffCharset(in);
+            }
+        }
+        if (toHash != null) {
+            try (InputStream in = openObject(tigDir, toHash)) {
+                toCharset = sniffCharset(in);
+            }
+        }
+
+        List<String> diffResult = null;
+        if (fromCharset != null && toCharset != null) {
+            try {
+                List<String> fromLines = fromHash == null ? List.of() : readObjectLines(tigDir, fromHash, fromCharset);
+                List<String> toLines = toHash == null ? List.of() : readObjectLines(tigDir, toHash, toCharset);
+                PhaseTimer timer = Phase.DIFF.start();
+                diffResult = unifiedDiff(fromLines, toLines, context);
+                timer.end(fileName, fromLines.size() + toLines.size(), 0);
+            } catch (MalformedInputException e) {
+                // Invalid text past the sniffed prefix
+            }
+        }
+        if (diffResult == null) {
+            System.out.println("Binary files differ: " + fileName);
+            System.out.println(fromId + ": " + (fromHash == null ? 0 : objectSize(tigDir, fromHash)) + " bytes, "
+                    + toId + ": " + (toHash == null ? 0 : objectSize(tigDir, toHash)) + " bytes");
+            return;
+        }
+        System.out.println("--- " + fromId + ": " + fileName);
+        System.out.println("+++ " + toId + ": " + fileName);
+        diffResult.forEach(System.out::println);
+    }
+
+    // Compares two commits (the second defaults to HEAD) by merge-walking their sorted manifests, so
+    // only paths and hashes are compared. With --stat the changed files are then read, in parallel,
+    // to count inserted and deleted lines.
+    private static void diffTree(String fromId, String toId, boolean stat, PathSpec paths) throws IOException {
+        Path tigDir = Paths.get(System.getProperty("user.dir")).resolve(".tig");
+        if (toId == null) {
+            toId = readHead(tigDir);
+        }
+        for (String id : new String[] {fromId, toId}) {
+            if (id == null || findCommit(tigDir, id) < 0) {
+                System.err.println("Error: Commit ID not found: " + (id == null ? fromId : id));
+                return;
+            }
+        }
+
+        List<TreeChange> changes = new ArrayList<>();
+        Iterator<Map.Entry<String, String>> from = paths.select(loadManifest(tigDir, fromId)).iterator();
+        Iterator<Map.Entry<String, String>> to = paths.select(loadManifest(tigDir, toId)).iterator();
+        Map.Entry<String, String> a = from.hasNext() ? from.next() : null;
+        Map.Entry<String, String> b = to.hasNext() ? to.next() : null;
+        while (a != null || b != null) {
+            int cmp = a == null ? 1 : b == null ? -1 : a.getKey().compareTo(b.getKey());
+            if (cmp < 0) {
+                changes.add(new TreeChange('D', a.getKey(), a.getValue(), null));
+                a = from.hasNext() ? from.next() : null;
+            } else if (cmp > 0) {
+                changes.add(new TreeChange('A', b.getKey(), null, b.getValue()));
+                b = to.hasNext() ? to.next() : null;
+            } else {
+                if (!a.getValue().equals(b.getValue())) {
+                    changes.add(new TreeChange('M', a.getKey(), a.getValue(), b.getValue()));
+                }
+                a = from.hasNext() ? from.next() : null;
+                b = to.hasNext() ? to.next() : null;
+            }
+        }
+
+        if (!stat) {
+            for (TreeChange change : changes) {
+                System.out.println(change.status() + "\t" + change.path());
+            }
+            return;
+        }
+
+        migrateCommitDirs(tigDir);
+        // {inserted, deleted} lines per change, or {-1, old size, new size} for a binary file
+        Map<TreeChange, long[]> counts = new ConcurrentHashMap<>();
+        forEachParallel(changes, change -> counts.put(change, countChangedLines(tigDir, change)));
+
+        int pathWidth = 0;
+        long widest = 0;
+        for (TreeChange change : changes) {
+            long[] count = counts.get(change);
+            pathWidth = Math.max(pathWidth, change.path().length());
+            if (count[0] >= 0) {
+                widest = Math.max(widest, count[0] + count[1]);
+            }
+        }
+        long insertions = 0;
+        long deletions = 0;
+        for (TreeChange change : changes) {
+            long[] count = counts.get(change);
+            String path = String.format("%-" + pathWidth + "s", change.path());
+            if (count[0] < 0) {
+                System.out.println(" " + path + " | Bin " + count[1] + " -> " + count[2] + " bytes");
+                continue;
+            }
+            insertions += count[0];
+            deletions += count[1];
+            // Scale the +/- graph down only when the largest change does not fit
+            long plus = count[0];
+            long minus = count[1];
+            if (widest > STAT_GRAPH_WIDTH) {
+                plus = count[0] == 0 ? 0 : Math.max(1, count[0] * STAT_GRAPH_WIDTH / widest);
+                minus = count[1] == 0 ? 0 : Math.max(1, count[1] * STAT_GRAPH_WIDTH / widest);
+            }
+            System.out.println(" " + path + " | " + (count[0] + count[1]) + " " + "+".repeat((int) plus) + "-".repeat((int) minus));
+        }
+        System.out.println(" " + changes.size() + " files changed, " + insertions + " insertions(+), " + deletions + " deletions(-)");
+    }
+
+    private static long[] countChangedLines(Path tigDir, TreeChange change) throws IOException {
+        Charset oldCharset = StandardCharsets.UTF_8;
+        Charset newCharset = StandardCharsets.UTF_8;
+        if (change.oldHash() != null) {
+            try (InputStream in = openObject(tigDir, change.oldHash())) {
+                oldCharset = sniffCharset(in);
+            }
+        }
+        if (change.newHash() != null) {
+            try (InputStream in = openObject(tigDir, change.newHash())) {
+                newCharset = sniffCharset(in);
+            }
+        }
+        if (oldCharset != null && newCharset != null) {
+            try {
+                List<String> oldLines = change.oldHash() == null ? List.of() : readObjectLines(tigDir, change.oldHash(), oldCharset);
+                List<String> newLines = change.newHash() == null ? List.of() : readObjectLines(tigDir, change.newHash(), newCharset);
+                PhaseTimer timer = Phase.DIFF.start();
+                boolean[][] changed = markChanges(oldLines, newLines);
+                timer.end(change.path(), oldLines.size() + newLines.size(), 0);
+                long deleted = 0;
+                long inserted = 0;
+                for (int i = 0; i < oldLines.size(); i++) {
+                    deleted += changed[0][i] ? 1 : 0;
+                }
+                for (int i = 0; i < newLines.size(); i++) {
+                    inserted += changed[1][i] ? 1 : 0;
+                }
+                return new long[] {inserted, deleted};
+            } catch (MalformedInputException e) {
+                // Invalid text past the sniffed prefix
+            }
+        }
+        return new long[] {-1,
+                change.oldHash() == null ? 0 : objectSize(tigDir, change.oldHash()),
+                change.newHash() == null ? 0 : objectSize(tigDir, change.newHash())};
+    }
+
+    private static void diff(String fileName, int context) throws IOException {
+        Path repoPath = Paths.get(System.getProperty("user.dir"));
+        Path tigDir = repoPath.resolve(".tig");
+    
+        int commitCount = commitCount(tigDir);
+        if (commitCount == 0) {
+            System.out.println("Error: There are no commits done. Commit a file first.");
+            return;
+        }
+    
+        // With HEAD at the newest commit of a linear history the file's latest history entry is its
+        // committed version, with no need to load the whole manifest
+        String head = readHead(tigDir);
+        int headSequence = findCommit(tigDir, head);
+        String committedHash = headSequence == commitCount - 1
+                ? versionAt(tigDir, headSequence, fileName)
+                : loadManifest(tigDir, head).get(fileName);
+    
+        if (committedHash == null) {
+            System.out.println("Error: The file: " + fileName + "  was not found in any commit.");
+            return;
+        }
+    
+        migrateCommitDirs(tigDir);
+        Path currentFilePath = repoPath.resolve(fileName);
+
+        // Unchanged stat data means the committed version is still on disk, no need to read either file
+        if (Files.exists(currentFilePath) && committedHash.equals(cachedHash(tigDir, fileName, currentFilePath))) {
+            System.out.println("There is no difference between the current file and the committed version.");
+            return;
+        }
+
+        // Decide up front from the first bytes of each version whether they are text, and in which encoding
+        Charset committedCharset;
+        try (InputStream in = openObject(tigDir, committedHash)) {
+            committedCharset = sniffCharset(in);
+        }
+        // A deleted working file is reported as such, and a text file is diffed against nothing
+        if (!Files.exists(currentFilePath)) {
+            System.out.println("The file: " + fileName + " was deleted from the working tree.");
+            if (committedCharset != null) {
+                try {
+                    generateUnifiedDiff(fileName, readObjectLines(tigDir, committedHash, committedCharset), List.of(), context);
+                } catch (MalformedInputException e) {
+                    // Invalid text past the sniffed prefix
+                }
+            }
+            return;
+        }
+        Charset currentCharset;
+        try (InputStream in = Files.newInputStream(currentFilePath)) {
+            currentCharset = sniffCharset(in);
+        }
+        if (committedCharset == null || currentCharset == null) {
+            binaryDiff(fileName, tigDir, committedHash, currentFilePath);
+            return;
+        }
+
+        List<String> committedLines;
+        List<String> currentLines;
+        try {
+            committedLines = readObjectLines(tigDir, committedHash, committedCharset);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(currentFilePath), currentCharset.newDecoder()))) {
+                currentLines = reader.lines().collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } catch (MalformedInputException e) {
+            // Invalid text past the sniffed prefix
+            binaryDiff(fileName, tigDir, committedHash, currentFilePath);
+            return;
+        }
+    
+        generateUnifiedDiff(fileName, committedLines, currentLines, context);
+    }
+
+    // Looks at the first SNIFF_BYTES bytes: a UTF-16 byte order mark or zero high bytes in every other
+    // position mean UTF-16, any other NUL byte or invalid UTF-8 means binary (null)
+    private static Charset sniffCharset(InputStream in) throws IOException {
+        byte[] head = in.readNBytes(SNIFF_BYTES);
+        int n = head.length;
+        if (n >= 2 && ((head[0] == (byte) 0xFE && head[1] == (byte) 0xFF) || (head[0] == (byte) 0xFF && head[1] == (byte) 0xFE))) {
+            return StandardCharsets.UTF_16;
+        }
+
+        int evenZeros = 0;
+        int oddZeros = 0;
+        for (int i = 0; i < n; i++) {
+            if (head[i] == 0) {
+                if ((i & 1) == 0) {
+                    evenZeros++;
+                } else {
+                    oddZeros++;
+                }
+            }
+        }
+        if (n >= 2 && n % 2 == 0) {
+            if (oddZeros * 2 >= n * 9 / 10 && evenZeros == 0) {
+                return StandardCharsets.UTF_16LE;
+            }
+            if (evenZeros * 2 >= n * 9 / 10 && oddZeros == 0) {
+                return StandardCharsets.UTF_16BE;
+            }
+        }
+        if (evenZeros + oddZeros > 0) {
+            return null;
+        }
+
+        // The sample may end in the middle of a multi-byte sequence, which is not an error
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(n + 1);
+        return decoder.decode(ByteBuffer.wrap(head), chars, n < SNIFF_BYTES).isError() ? null : StandardCharsets.UTF_8;
+    }
+
+    // rsync-style comparison: the committed version is split into fixed blocks indexed by a weak rolling
+    // checksum and a strong hash, then the working file is streamed through a rolling window of the same
+    // size. Windows that match a block are unchanged data, everything between them is changed. Both files
+    // are read once, and memory is bounded by BINARY_DIFF_MAX_BLOCKS whatever their sizes.
+    private static void binaryDiff(String fileName, Path tigDir, String committedHash, Path currentFilePath) throws IOException {
+        PhaseTimer timer = Phase.DIFF.start();
+        long oldSize = objectSize(tigDir, committedHash);
+        long newSize = Files.size(currentFilePath);
+        int blockSize = (int) Math.max(BINARY_DIFF_MIN_BLOCK, (oldSize + BINARY_DIFF_MAX_BLOCKS - 1) / BINARY_DIFF_MAX_BLOCKS);
+        int blocks = (int) (oldSize / blockSize);
+        int tailLength = (int) (oldSize % blockSize);
+
+        int capacity = Integer.highestOneBit(Math.max(16, blocks * 2)) << 1;
+        int[] slotBlocks = new int[capacity];
+        int[] slotWeak = new int[capacity];
+        long[] strong = new long[blocks];
+        long tailStrong = 0;
+        Arrays.fill(slotBlocks, -1);
+        MessageDigest md5 = newMd5();
+        try (InputStream in = new BufferedInputStream(openObject(tigDir, committedHash), HASH_BUFFER_SIZE)) {
+            byte[] block = new byte[blockSize];
+            for (int b = 0; b < blocks; b++) {
+                in.readNBytes(block, 0, blockSize);
+                int weak = weakChecksum(block, 0, blockSize);
+                strong[b] = strongHash(md5, block, 0, blockSize);
+                int slot = mix(weak) & (capacity - 1);
+                while (slotBlocks[slot] != -1) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                slotBlocks[slot] = b;
+                slotWeak[slot] = weak;
+            }
+            if (tailLength > 0) {
+                in.readNBytes(block, 0, tailLength);
+                tailStrong = strongHash(md5, block, 0, tailLength);
+            }
+        }
+
+        BitSet matchedBlocks = new BitSet(blocks);
+        List<long[]> changed = new ArrayList<>();
+        long[] changedTotals = new long[2];
+        long matchedBytes = 0;
+        try (InputStream in = Files.newInputStream(currentFilePath)) {
+            // window[] is a ring buffer over the last blockSize bytes of the working file
+            byte[] chunk = new byte[HASH_BUFFER_SIZE];
+            byte[] window = new byte[blockSize];
+            byte[] candidate = new byte[blockSize];
+            long position = 0;
+            long literalStart = 0;
+            int filled = 0;
+            int head = 0;
+            int a = 0;
+            int b = 0;
+            int chunkLength;
+            while ((chunkLength = in.read(chunk)) != -1) {
+                for (int c = 0; c < chunkLength; c++) {
+                    int next = chunk[c] & 0xff;
+                    if (filled < blockSize) {
+                        window[(head + filled) % blockSize] = (byte) next;
+                        filled++;
+                        a = (a + next) & 0xffff;
+                        b = (b + a) & 0xffff;
+                    } else {
+                        int out = window[head] & 0xff;
+                        window[head] = (byte) next;
+                        head = (head + 1) % blockSize;
+                        a = (a - out + next) & 0xffff;
+                        b = (b - blockSize * out + a) & 0xffff;
+                    }
+                    position++;
+                    if (filled < blockSize || blocks == 0) {
+                        continue;
+                    }
+
+                    int weak = a | (b << 16);
+                    for (int slot = mix(weak) & (capacity - 1); slotBlocks[slot] != -1; slot = (slot + 1) & (capacity - 1)) {
+                        if (slotWeak[slot] != weak) {
+                            continue;
+                        }
+                        for (int i = 0; i < blockSize; i++) {
+                            candidate[i] = window[(head + i) % blockSize];
+                        }
+                        int block = slotBlocks[slot];
+                        if (strong[block] == strongHash(md5, candidate, 0, blockSize)) {
+                            addRange(changed, changedTotals, literalStart, position - blockSize - literalStart);
+                            matchedBlocks.set(block);
+                            matchedBytes += blockSize;
+                            literalStart = position;
+                            filled = 0;
+                            head = 0;
+                            a = 0;
+                            b = 0;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            // The committed version's last partial block can only match at the very end
+            long pending = position - literalStart;
+            if (tailLength > 0 && pending >= tailLength && filled >= tailLength) {
+                for (int i = 0; i < tailLength; i++) {
+                    candidate[i] = window[(head + filled - tailLength + i) % blockSize];
+                }
+                if (strongHash(md5, candidate, 0, tailLength) == tailStrong) {
+                    pending -= tailLength;
+                    matchedBytes += tailLength;
+                    tailLength = 0;
+                }
+            }
+            addRange(changed, changedTotals, literalStart, pending);
+        }
+
+        List<long[]> removed = new ArrayList<>();
+        long[] removedTotals = new long[2];
+        long runStart = -1;
+        for (int block = 0; block <= blocks; block++) {
+            boolean unmatched = block < blocks ? !matchedBlocks.get(block) : tailLength > 0;
+            long blockStart = (long) block * blockSize;
+            if (unmatched && runStart < 0) {
+                runStart = blockStart;
+            } else if (!unmatched && runStart >= 0) {
+                addRange(removed, removedTotals, runStart, blockStart - runStart);
+                runStart = -1;
+            }
+        }
+        if (runStart >= 0) {
+            addRange(removed, removedTotals, runStart, oldSize - runStart);
+        }
+        bytesRead.add(oldSize + newSize);
+        timer.end(fileName, blocks, oldSize + newSize);
+
+        // Only called when the hashes differ, so matching every block means data was reordered or repeated
+        System.out.println("Binary files differ: " + fileName);
+        System.out.println("Committed: " + oldSize + " bytes, working: " + newSize + " bytes, " + matchedBytes
+                + " bytes unchanged (block size " + blockSize + ")");
+        if (changedTotals[0] == 0 && removedTotals[0] == 0) {
+            System.out.println("Every block of the working file is found in the committed version: data was moved or duplicated"
+                    + (oldSize == newSize ? "" : ", size changed by " + (newSize - oldSize) + " bytes"));
+        }
+        printRanges("+", "changed or added in the working file", changed, changedTotals);
+        printRanges("-", "of the committed version not found in the working file", removed, removedTotals);
+    }
+
+    // Records up to BINARY_DIFF_MAX_RANGES (offset, length) ranges; totals[] counts all of them and their bytes
+    private static void addRange(List<long[]> ranges, long[] totals, long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
+        totals[0]++;
+        totals[1] += length;
+        if (ranges.size() < BINARY_DIFF_MAX_RANGES) {
+            ranges.add(new long[] {offset, length});
+        }
+    }
+
+    private static void printRanges(String marker, String description, List<long[]> ranges, long[] totals) {
+        if (totals[0] == 0) {
+            return;
+        }
+        System.out.println(totals[1] + " bytes in " + totals[0] + " ranges " + description + ":");
+        for (long[] range : ranges) {
+            System.out.println(marker + " bytes " + range[0] + "-" + (range[0] + range[1] - 1) + " (" + range[1] + " bytes)");
+        }
+        if (totals[0] > ranges.size()) {
+            System.out.println("  ... and " + (totals[0] - ranges.size()) + " more");
+        }
+    }
+
+    // rsync's checksum: sum of the bytes in the low 16 bits, sum of the running sums in the high 16 bits
+    private static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            a = (a + (data[i] & 0xff)) & 0xffff;
+            b = (b + a) & 0xffff;
+        }
+        return a | (b << 16);
+    }
+
+    private static long strongHash(MessageDigest md5, byte[] data, int offset, int length) {
+        md5.update(data, offset, length);
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+
+    private static MessageDigest newMd5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to calculate hash.", e);
+        }
+    }
+    
+    private static void generateUnifiedDiff(String fileName, List<String> committedLines, List<String> currentLines, int context) {
+        PhaseTimer timer = Phase.DIFF.start();
+        List<String> diffResult = unifiedDiff(committedLines, currentLines, context);
+        timer.end(fileName, committedLines.size() + currentLines.size(), 0);
+    
+        if (diffResult.isEmpty()) {
+            System.out.println("There is no difference between the current file and the committed version.");
+        } else {
+            System.out.println("--- Committed: " + fileName);
+            System.out.println("+++ Working: " + fileName);
+            diffResult.forEach(System.out::println);
+        }
+    }
+
+    // Returns {deleted, inserted}: which old lines are removed and which new lines are added, each with
+    // one spare trailing slot
+    private static boolean[][] markChanges(List<String> oldLines, List<String> newLines) {
+        // Lines are compared as interned integer ids, so equal lines are found by one int comparison
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = new int[oldLines.size()];
+        int[] b = new int[newLines.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = ids.computeIfAbsent(oldLines.get(i), line -> ids.size());
+        }
+        for (int i = 0; i < b.length; i++) {
+            b[i] = ids.computeIfAbsent(newLines.get(i), line -> ids.size());
+        }
+        boolean[] deleted = new boolean[a.length + 1];
+        boolean[] inserted = new boolean[b.length + 1];
+        diffRegion(a, 0, a.length, b, 0, b.length, deleted, inserted);
+        return new boolean[][] {deleted, inserted};
+    }
+
+    // Builds the hunks of a unified diff, each with up to `context` unchanged lines around its changes
+    private static List<String> unifiedDiff(List<String> oldLines, List<String> newLines, int context) {
+        boolean[][] changed = markChanges(oldLines, newLines);
+        boolean[] deleted = changed[0];
+        boolean[] inserted = changed[1];
+        int oldCount = oldLines.size();
+        int newCount = newLines.size();
+
+        List<String> result = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < oldCount || j < newCount) {
+            // Skip to the next change
+            while (i < oldCount && j < newCount && !deleted[i] && !inserted[j]) {
+                i++;
+                j++;
+            }
+            if (i == oldCount && j == newCount) {
+                break;
+            }
+
+            int hunkOldStart = Math.max(0, i - context);
+            int hunkNewStart = j - (i - hunkOldStart);
+            List<String> body = new ArrayList<>();
+            for (int k = hunkOldStart; k < i; k++) {
+                body.add(" " + oldLines.get(k));
+            }
+            int oldEnd = i;
+            int newEnd = j;
+            while (true) {
+                while (i < oldCount && deleted[i]) {
+                    body.add("-" + oldLines.get(i++));
+                }
+                while (j < newCount && inserted[j]) {
+                    body.add("+" + newLines.get(j++));
+                }
+                oldEnd = i;
+                newEnd = j;
+                // Merge with the next change if the unchanged run between them fits in both contexts
+                int run = 0;
+                while (i + run < oldCount && j + run < newCount && !deleted[i + run] && !inserted[j + run]) {
+                    run++;
+                }
+                boolean atEnd = (i + run == oldCount) && (j + run == newCount);
+                if (atEnd || run > 2 * context) {
+                    int trailing = Math.min(run, context);
+                    for (int k = 0; k < trailing; k++) {
+                        body.add(" " + oldLines.get(i + k));
+                    }
+                    oldEnd = i + trailing;
+                    newEnd = j + trailing;
+                    i += run;
+                    j += run;
+                    break;
+                }
+                for (int k = 0; k < run; k++) {
+                    body.add(" " + oldLines.get(i + k));
+                }
+                i += run;
+                j += run;
+            }
+            result.add("@@ -" + hunkRange(hunkOldStart, oldEnd - hunkOldStart) + " +" + hunkRange(hunkNewStart, newEnd - hunkNewStart) + " @@");
+            result.addAll(body);
+        }
+        return result;
+    }
+
+    private static String hunkRange(int start, int count) {
+        if (count == 1) {
+            return Integer.toString(start + 1);
+        }
+        // An empty range names the line before it
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    // Patience step: lines that occur exactly once in both regions are matched up along their longest
+    // increasing subsequence and used as anchors, and only the gaps between anchors are diffed further.
+    // Regions with no unique common line go to Myers' algorithm.
+    private static void diffRegion(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi, boolean[] deleted, boolean[] inserted) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            Arrays.fill(deleted, aLo, aHi, true);
+            Arrays.fill(inserted, bLo, bHi, true);
+            return;
+        }
+
+        // Per line id: occurrences in a, occurrences in b, last position in a, last position in b
+        Map<Integer, int[]> counts = new HashMap<>();
+        for (int i = aLo; i < aHi; i++) {
+            int[] c = counts.computeIfAbsent(a[i], id -> new int[4]);
+            c[0]++;
+            c[2] = i;
+        }
+        boolean anyCommon = false;
+        for (int j = bLo; j < bHi; j++) {
+            int[] c = counts.get(b[j]);
+            if (c != null) {
+                c[1]++;
+                c[3] = j;
+                anyCommon = true;
+            }
+        }
+        if (!anyCommon) {
+            Arrays.fill(deleted, aLo, aHi, true);
+            Arrays.fill(inserted, bLo, bHi, true);
+            return;
+        }
+
+        // Unique common lines in the order they appear in b, with their position in a
+        List<int[]> unique = new ArrayList<>();
+        for (int j = bLo; j < bHi; j++) {
+            int[] c = counts.get(b[j]);
+            if (c != null && c[0] == 1 && c[1] == 1) {
+                unique.add(new int[] {c[2], j});
+            }
+        }
+        List<int[]> anchors = longestIncreasing(unique);
+        if (anchors.isEmpty()) {
+            myers(a, aLo, aHi, b, bLo, bHi, deleted, inserted);
+            return;
+        }
+
+        int prevA = aLo;
+        int prevB = bLo;
+        for (int[] anchor : anchors) {
+            diffRegion(a, prevA, anchor[0], b, prevB, anchor[1], deleted, inserted);
+            prevA = anchor[0] + 1;
+            prevB = anchor[1] + 1;
+        }
+        diffRegion(a, prevA, aHi, b, prevB, bHi, deleted, inserted);
+    }
+
+    // Longest subsequence of (position in a, position in b) pairs, already ordered by b, that is also
+    // increasing in a, found by patience sorting
+    private static List<int[]> longestIncreasing(List<int[]> pairs) {
+        int[] tails = new int[pairs.size()];
+        int[] previous = new int[pairs.size()];
+        int length = 0;
+        for (int i = 0; i < pairs.size(); i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (pairs.get(tails[mid])[0] < pairs.get(i)[0]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            length = Math.max(length, low + 1);
+        }
+
+        LinkedList<int[]> result = new LinkedList<>();
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            result.addFirst(pairs.get(i));
+        }
+        return result;
+    }
+
+    // Linear-space Myers: find a point on an optimal edit path through the middle snake, then diff the
+    // two halves on either side of it
+    private static void myers(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi, boolean[] deleted, boolean[] inserted) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            Arrays.fill(deleted, aLo, aHi, true);
+            Arrays.fill(inserted, bLo, bHi, true);
+            return;
+        }
+
+        int[] split = middleSnake(a, aLo, aHi, b, bLo, bHi);
+        myers(a, aLo, aLo + split[0], b, bLo, bLo + split[1], deleted, inserted);
+        myers(a, aLo + split[0], aHi, b, bLo + split[1], bHi, deleted, inserted);
+    }
+
+    private static int[] middleSnake(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int maxD = Math.min((n + m + 1) / 2, MAX_DIFF_COST);
+        int offset = maxD + 1;
+        // forward[k]: furthest x on diagonal k = x - y from the start; backward[k]: furthest distance
+        // travelled back from the end on diagonal k of the reversed sequences
+        int[] forward = new int[2 * maxD + 3];
+        int[] backward = new int[2 * maxD + 3];
+
+        for (int d = 0; d <= maxD; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && forward[k - 1 + offset] < forward[k + 1 + offset])) ? forward[k + 1 + offset] : forward[k - 1 + offset] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[k + offset] = x;
+                int reverseK = delta - k;
+                if (odd && reverseK >= -(d - 1) && reverseK <= d - 1 && x + backward[reverseK + offset] >= n) {
+                    return new int[] {x, y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && backward[k - 1 + offset] < backward[k + 1 + offset])) ? backward[k + 1 + offset] : backward[k - 1 + offset] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[k + offset] = x;
+                int forwardK = delta - k;
+                if (!odd && forwardK >= -d && forwardK <= d && forward[forwardK + offset] + x >= n) {
+                    return new int[] {n - x, m - y};
+                }
+            }
+        }
+
+        // Too expensive to find the optimum: split at the forward point that got furthest along
+        int bestX = 0;
+        int bestY = 0;
+        for (int k = -maxD; k <= maxD; k += 2) {
+            int x = Math.min(forward[k + offset], n);
+            int y = x - k;
+            if (y >= 0 && y <= m && x + y > bestX + bestY) {
+                bestX = x;
+                bestY = y;
+            }
+        }
+        if (bestX + bestY == 0) {
+            return new int[] {n / 2, m / 2};
+        }
+        return new int[] {bestX, bestY};
+    }
+    
+    // private static void diff(String fileName) throws IOException {
+    //     Path repoPath = Paths.get(System.getProperty("user.dir"));
+    //     Path tigPath = repoPath.resolve(".tig");
+
+    //     List<Path> manifestFiles = Files.walk(tigPath)
+    //             .filter(file -> file.toString().endsWith(".csv"))
+    //             .collect(Collectors.toList());
+    //     manifestFiles.sort((file1, file2) -> file2.compareTo(file1));
+
+    //     Path latestManifest = manifestFiles.get(0);
+    //     String committedHash = null;
+
+    //     try (BufferedReader reader = Files.newBufferedReader(latestManifest)) {
+    //         String line;
+    //         while ((line = reader.readLine()) != null) {
+    //             String[] parts = line.split(",");
+    //             if (parts[0].equals(fileName)) {
+    //                 committedHash = parts[1];
+    //                 break;
+    //             }
+    //         }
+    //     }
+
+    //     if (committedHash == null) {
+    //         System.out.println("File not found in any commit.");
+    //         return;
+    //     }
+
+    //     Path committedDir = tigPath.resolve(committedHash);
+    //     Path committedFile = committedDir.resolve(fileName);
+    //     if (!Files.exists(committedFile)) {
+    //         System.out.println("Committed file not found: " + committedFile);
+    //         return;
+    //     }
+
+    //     Path currentFile = repoPath.resolve(fileName);
+    //     if (!Files.exists(currentFile)) {
+    //         System.out.println("Current file not found: " + currentFile);
+    //         return;
+    //     }
+
+    //     try (BufferedReader committedReader = Files.newBufferedReader(committedFile);
+    //          BufferedReader currentReader = Files.newBufferedReader(currentFile)) {
+    //         String committedLine;
+    //         String currentLine;
+    //         while ((committedLine = committedReader.readLine()) != null) {
+    //             currentLine = currentReader.readLine();
+    //             if (currentLine == null) {
+    //                 System.out.println(committedLine);
+    //             } else if (!committedLine.equals(currentLine)) {
+    //                 System.out.println(committedLine);
+    //                 System.out.println("+" + currentLine);
+    //             }
+    //         }
+
+    //         while ((currentLine = currentReader.readLine()) != null) {
+    //             System.out.println("+" + currentLine);
+    //         }
+    //     }
+    // }
+
+    // private static void log(String num, String... args) throws IOException {
+    //     Path commitsFile = Paths.get(System.getProperty("user.dir"), REPO_DIR, ".tig", COMMIT_FILE);
+    //     List<String> commits = Files.lines(commitsFile).collect(Collectors.toList());
+
+    //     int start = Math.max(0, commits.size() - Integer.parseInt(num));
+    //     for (int i = commits.size() - 1; i >= start; i--) {
+    //         String[] parts = commits.get(i).split(",");
+    //         System.out.println("Commit ID: " + parts[0]);
+    //         System.out.println("Date: " + parts[1]);
+    //         System.out.println("Message: " + parts[2]);
+    //         System.out.println();
+    //     }
+    // }
+
+    // Streams the file through the digest: small files via the thread's reused direct buffer, large
+    // files via memory-mapped windows, so heap use stays constant whatever the file size.
+    private static String calculateHash(Path file) throws IOException {
+        PhaseTimer timer = Phase.HASH.start();
+        MessageDigest digest = newDigest();
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size >= MMAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MMAP_WINDOW) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MMAP_WINDOW, size - position)));
+                }
+            } else {
+                ByteBuffer buffer = hashBuffer.get();
+                buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        bytesRead.add(size);
+        timer.end(file.toString(), 1, size);
+        return bytesToHex(digest.digest(), HASH_LEN);
+    }
+
+    // Previous implementation, kept only as the baseline for `bench hash`
+    private static String calculateHashReadAll(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] bytes = Files.readAllBytes(file);
+        return bytesToHex(digest.digest(bytes), HASH_LEN);
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to calculate hash.", e);
+        }
+    }
+
+    private static String cachedHash(Path tigDir, String relativePath, Path file) throws IOException {
+        if (!useCache) {
+            filesHashed.increment();
+            return calculateHash(file);
+        }
+
+        Map<String, IndexEntry> entries = loadIndex(tigDir);
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        String fileKey = fileKey(attrs);
+
+        IndexEntry cached = entries.get(relativePath);
+        // An entry written in the same instant as the file was last modified may hide a later
+        // write within the same timestamp tick, so only trust entries older than the index itself
+        if (cached != null && cached.size() == size && cached.mtime() == mtime
+                && cached.fileKey().equals(fileKey) && mtime < indexMtime) {
+            cacheHits.incrementAndGet();
+            return cached.hash();
+        }
+
+        cacheMisses.incrementAndGet();
+        filesHashed.increment();
+        String hash = calculateHash(file);
+        entries.put(relativePath, new IndexEntry(size, mtime, fileKey, hash));
+        indexDirty = true;
+        return hash;
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        return attrs.fileKey() == null ? "-" : attrs.fileKey().toString().replace(',', ';');
+    }
+
+    // Records a hash that is already known, e.g. for a file just restored from the object store
+    private static void recordHash(Path tigDir, String relativePath, Path file, String hash) throws IOException {
+        if (!useCache) {
+            return;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String fileKey = fileKey(attrs);
+        loadIndex(tigDir).put(relativePath, new IndexEntry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKey, hash));
+        indexDirty = true;
+    }
+
+    private static synchronized Map<String, IndexEntry> loadIndex(Path tigDir) throws IOException {
+        Path path = tigDir.resolve(INDEX_FILE);
+        if (index != null && path.equals(indexPath)) {
+            return index;
+        }
+
+        indexPath = path;
+        index = new ConcurrentHashMap<>();
+        indexMtime = Long.MIN_VALUE;
+        indexDirty = false;
+        if (!Files.exists(path)) {
+            return index;
+        }
+
+        indexMtime = Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS);
+        for (String line : Files.readAllLines(path)) {
+            String[] parts = line.split(",");
+            if (parts.length == 5) {
+                index.put(parts[0], new IndexEntry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3], parts[4]));
+            }
+        }
+        return index;
+    }
+
+    // Drops cache entries for paths in `scanned` that the scan no longer found
+    private static void pruneIndex(Path tigDir, PathSpec scanned, Set<String> livePaths) throws IOException {
+        if (!useCache) {
+            return;
+        }
+        if (loadIndex(tigDir).keySet().removeIf(path -> scanned.matches(path) && !livePaths.contains(path))) {
+            indexDirty = true;
+        }
+    }
+
+    private static void saveIndex() throws IOException {
+        if (index == null || !indexDirty || !Files.isDirectory(indexPath.getParent())) {
+            return;
+        }
+
+        // The stat cache is only a hint, so concurrent processes may each replace it; a private temp
+        // file keeps them from renaming each other's half-written copies
+        Path tmp = Files.createTempFile(indexPath.getParent(), INDEX_FILE, ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+                IndexEntry e = entry.getValue();
+                writer.write(String.join(",", entry.getKey(), Long.toString(e.size()), Long.toString(e.mtime()), e.fileKey(), e.hash()));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexMtime = Files.getLastModifiedTime(indexPath).to(TimeUnit.NANOSECONDS);
+        indexDirty = false;
+    }
+
+    // Commits are appended to commits.log as length-prefixed binary records. commits.idx maps the
+    // sequence number of a commit to its record with fixed-width entries, so reading the n-th or the
+    // last few commits is a single seek, and commits.ids keeps the same ids sorted for binary search.
+    private static int commitCount(Path tigDir) throws IOException {
+        importLegacyCommits(tigDir);
+        Path indexFile = tigDir.resolve(COMMIT_INDEX_FILE);
+        return Files.exists(indexFile) ? (int) (Files.size(indexFile) / COMMIT_INDEX_RECORD) : 0;
+    }
+
+    private static Commit readCommitAt(Path tigDir, int sequence) throws IOException {
+        importLegacyCommits(tigDir);
+        Commit cached = commitCache.get(sequence);
+        if (cached != null) {
+            return cached;
+        }
+        PhaseTimer timer = Phase.LOG_PARSE.start();
+        ByteBuffer record = ByteBuffer.allocate(COMMIT_INDEX_RECORD);
+        try (FileChannel index = FileChannel.open(tigDir.resolve(COMMIT_INDEX_FILE), StandardOpenOption.READ)) {
+            readFully(index, record, (long) sequence * COMMIT_INDEX_RECORD);
+        }
+        long offset = record.getLong(COMMIT_ID_LEN);
+
+        try (FileChannel log = FileChannel.open(tigDir.resolve(COMMIT_LOG_FILE), StandardOpenOption.READ)) {
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+            readFully(log, length, offset);
+            ByteBuffer payload = ByteBuffer.allocate(length.getInt(0));
+            readFully(log, payload, offset + Integer.BYTES);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+            String id = readString(in);
+            String date = readString(in);
+            String message = readString(in);
+            String parent = readString(in);
+            int fileCount = in.readInt();
+            Map<String, String> files = new LinkedHashMap<>();
+            byte[] hash = new byte[HASH_LEN];
+            for (int i = 0; i < fileCount; i++) {
+                String path = readString(in);
+                in.readFully(hash);
+                files.put(path, bytesToHex(hash, HASH_LEN));
+            }
+            Commit commit = new Commit(id, date, message, parent, Collections.unmodifiableMap(files));
+            commitCache.put(sequence, commit);
+            bytesRead.add(COMMIT_INDEX_RECORD + Integer.BYTES + payload.capacity());
+            timer.end(COMMIT_LOG_FILE, 1, COMMIT_INDEX_RECORD + Integer.BYTES + payload.capacity());
+            return commit;
+        }
+    }
+
+    private static Commit readCommit(Path tigDir, String commitId) throws IOException {
+        int sequence = findCommit(tigDir, commitId);
+        return sequence < 0 ? null : readCommitAt(tigDir, sequence);
+    }
+
+    // Binary search over the sorted commits.ids records; returns the commit's sequence number or -1
+    private static int findCommit(Path tigDir, String commitId) throws IOException {
+        importLegacyCommits(tigDir);
+        Path idsFile = tigDir.resolve(COMMIT_IDS_FILE);
+        byte[] key = commitId.getBytes(StandardCharsets.UTF_8);
+        if (key.length != COMMIT_ID_LEN || !Files.exists(idsFile)) {
+            return -1;
+        }
+
+        try (FileChannel ids = FileChannel.open(idsFile, StandardOpenOption.READ)) {
+            MappedByteBuffer records = ids.map(FileChannel.MapMode.READ_ONLY, 0, ids.size());
+            int position = searchCommitIds(records, (int) (ids.size() / COMMIT_IDS_RECORD), key);
+            return position < 0 ? -1 : records.getInt(position * COMMIT_IDS_RECORD + COMMIT_ID_LEN);
+        }
+    }
+
+    // Returns the index of the record holding key, or -(insertion point) - 1 when absent
+    private static int searchCommitIds(ByteBuffer records, int count, byte[] key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = 0;
+            for (int i = 0; i < COMMIT_ID_LEN && cmp == 0; i++) {
+                cmp = Integer.compare(records.get(mid * COMMIT_IDS_RECORD + i) & 0xff, key[i] & 0xff);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static void appendCommit(Path tigDir, Commit commit) throws IOException {
+        byte[] id = commitIdBytes(commit.id());
+        try (FileChannel ids = FileChannel.open(tigDir.resolve(COMMIT_IDS_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Rejected before anything is written, so a duplicate leaves no trace in the log or its index
+            int count = (int) (ids.size() / COMMIT_IDS_RECORD);
+            ByteBuffer records = ByteBuffer.allocate(count * COMMIT_IDS_RECORD);
+            readFully(ids, records, 0);
+            int position = searchCommitIds(records, count, id);
+            if (position >= 0) {
+                throw new IOException("Duplicate commit ID: " + commit.id());
+            }
+
+            // The log record goes first: a crash before the index is updated only leaves unreachable bytes
+            long offset;
+            try (FileChannel log = FileChannel.open(tigDir.resolve(COMMIT_LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                offset = log.size();
+                log.write(ByteBuffer.wrap(commitRecord(commit)), offset);
+            }
+
+            int sequence;
+            try (FileChannel index = FileChannel.open(tigDir.resolve(COMMIT_INDEX_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                sequence = (int) (index.size() / COMMIT_INDEX_RECORD);
+                index.write(ByteBuffer.allocate(COMMIT_INDEX_RECORD).put(id).putLong(offset).flip(), (long) sequence * COMMIT_INDEX_RECORD);
+            }
+
+            int insertAt = -position - 1;
+            ByteBuffer tail = records.position(insertAt * COMMIT_IDS_RECORD).slice();
+            ids.write(ByteBuffer.allocate(COMMIT_IDS_RECORD).put(id).putInt(sequence).flip(), (long) insertAt * COMMIT_IDS_RECORD);
+            ids.write(tail, (long) (insertAt + 1) * COMMIT_IDS_RECORD);
+        }
+    }
+
+    private static byte[] commitIdBytes(String commitId) throws IOException {
+        byte[] id = commitId.getBytes(StandardCharsets.UTF_8);
+        if (id.length != COMMIT_ID_LEN) {
+            throw new IOException("Invalid commit ID: " + commitId);
+        }
+        return id;
+    }
+
+    // A commits.log record: the payload length, then the payload
+    private static byte[] commitRecord(Commit commit) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(0);
+        writeString(out, commit.id());
+        writeString(out, commit.date());
+        writeString(out, commit.message());
+        writeString(out, commit.parent());
+        out.writeInt(commit.files().size());
+        for (Map.Entry<String, String> file : commit.files().entrySet()) {
+            writeString(out, file.getKey());
+            out.write(hexToBytes(file.getValue()));
+        }
+        byte[] record = payload.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - Integer.BYTES);
+        return record;
+    }
+
+    // .tig/history/xx/<rest> lists the sequence numbers of the commits that changed one path, named by the
+    // MD5 of the path, as 4-byte ints in commit order. .tig/history/state records how many commits are
+    // indexed, so each commit only appends its own paths and an index that is missing or behind (a
+    // repository from before it existed, an interrupted commit) catches up from where it stopped.
+    // A path is indexed only when its hash differs from the parent's manifest.
+    private static HistoryState updateHistory(Path tigDir) throws IOException {
+        Path stateFile = tigDir.resolve(HISTORY_DIR).resolve(HISTORY_STATE_FILE);
+        int indexed = 0;
+        boolean linear = true;
+        if (Files.exists(stateFile)) {
+            ByteBuffer state = ByteBuffer.wrap(Files.readAllBytes(stateFile));
+            indexed = state.getInt();
+            linear = state.get() != 0;
+        }
+        int count = commitCount(tigDir);
+        if (indexed >= count) {
+            return new HistoryState(indexed, linear);
+        }
+
+        String previous = indexed == 0 ? "" : readCommitAt(tigDir, indexed - 1).id();
+        for (int sequence = indexed; sequence < count; sequence++) {
+            Commit commit = readCommitAt(tigDir, sequence);
+            linear &= commit.parent().equals(previous);
+            Map<String, String> parentFiles = commit.parent().isEmpty() ? Collections.emptyMap() : loadManifest(tigDir, commit.parent());
+            for (Map.Entry<String, String> file : commit.files().entrySet()) {
+                if (!file.getValue().equals(parentFiles.get(file.getKey()))) {
+                    appendHistory(historyPath(tigDir, file.getKey()), sequence);
+                }
+            }
+            previous = commit.id();
+        }
+
+        Path tmp = stateFile.resolveSibling(HISTORY_STATE_FILE + ".tmp");
+        Files.write(tmp, ByteBuffer.allocate(Integer.BYTES + 1).putInt(count).put((byte) (linear ? 1 : 0)).array());
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new HistoryState(count, linear);
+    }
+
+    private static Path historyPath(Path tigDir, String path) throws IOException {
+        String name = bytesToHex(newMd5().digest(path.getBytes(StandardCharsets.UTF_8)), HASH_LEN);
+        return tigDir.resolve(HISTORY_DIR).resolve(name.substring(0, 2)).resolve(name.substring(2));
+    }
+
+    private static void appendHistory(Path historyFile, int sequence) throws IOException {
+        Files.createDirectories(historyFile.getParent());
+        try (FileChannel channel = FileChannel.open(historyFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size() - channel.size() % Integer.BYTES;
+            ByteBuffer last = ByteBuffer.allocate(Integer.BYTES);
+            // Already there if an earlier catch-up was interrupted after this file
+            if (size > 0 && channel.read(last, size - Integer.BYTES) == Integer.BYTES && last.getInt(0) == sequence) {
+                return;
+            }
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, sequence), size);
+        }
+    }
+
+    private static int[] readHistory(Path tigDir, String path) throws IOException {
+        Path historyFile = historyPath(tigDir, path);
+        if (!Files.exists(historyFile)) {
+            return new int[0];
+        }
+        PhaseTimer timer = Phase.LOG_PARSE.start();
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(historyFile));
+        int[] history = new int[records.remaining() / Integer.BYTES];
+        records.asIntBuffer().get(history);
+        bytesRead.add(records.capacity());
+        timer.end(path, history.length, records.capacity());
+        return history;
+    }
+
+    // HEAD names the checked out commit; repositories from before HEAD existed are at their last commit
+    private static String readHead(Path tigDir) throws IOException {
+        Path headFile = tigDir.resolve(HEAD_FILE);
+        if (Files.exists(headFile)) {
+            return Files.readString(headFile).trim();
+        }
+        int commitCount = commitCount(tigDir);
+        return commitCount == 0 ? null : readCommitAt(tigDir, commitCount - 1).id();
+    }
+
+    private static void writeHead(Path tigDir, String commitId) throws IOException {
+        Path tmp = tigDir.resolve(HEAD_FILE + ".tmp");
+        Files.writeString(tmp, commitId + System.lineSeparator());
+        Files.move(tmp, tigDir.resolve(HEAD_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Every commit has a manifest: the full sorted path -> hash snapshot of the tree at that commit,
+    // its parent's snapshot with the commit's own files applied. Commits made before manifests
+    // existed get theirs built from the nearest ancestor that has one, and written for next time.
+    private static SortedMap<String, String> loadManifest(Path tigDir, String commitId) throws IOException {
+        synchronized (manifestCache) {
+            SortedMap<String, String> cached = manifestCache.get(commitId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        SortedMap<String, String> manifest = Collections.unmodifiableSortedMap(buildManifest(tigDir, commitId));
+        synchronized (manifestCache) {
+            manifestCache.put(commitId, manifest);
+        }
+        return manifest;
+    }
+
+    private static SortedMap<String, String> buildManifest(Path tigDir, String commitId) throws IOException {
+        Path manifestFile = tigDir.resolve(MANIFESTS_DIR).resolve(commitId);
+        if (Files.exists(manifestFile)) {
+            return readManifest(manifestFile);
+        }
+
+        Deque<Commit> missing = new ArrayDeque<>();
+        SortedMap<String, String> manifest = new TreeMap<>();
+        for (String id = commitId; !id.isEmpty(); ) {
+            Path ancestorFile = tigDir.resolve(MANIFESTS_DIR).resolve(id);
+            if (Files.exists(ancestorFile)) {
+                manifest = readManifest(ancestorFile);
+                break;
+            }
+            Commit commit = readCommit(tigDir, id);
+            if (commit == null) {
+                throw new IOException("Commit ID not found: " + id);
+            }
+            missing.push(commit);
+            id = commit.parent();
+        }
+        while (!missing.isEmpty()) {
+            Commit commit = missing.pop();
+            manifest.putAll(commit.files());
+            writeManifest(tigDir, commit.id(), manifest);
+        }
+        return manifest;
+    }
+
+    // Entries are sorted by path and front-coded: each path is stored as the number of leading bytes
+    // it shares with the previous one plus the remaining suffix, followed by the raw hash bytes
+    private static void writeManifest(Path tigDir, String commitId, SortedMap<String, String> manifest) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ByteBuffer.allocate(8).putInt(MANIFEST_MAGIC).putInt(manifest.size()).array());
+        byte[] previous = new byte[0];
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            byte[] path = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            while (shared < Math.min(previous.length, path.length) && previous[shared] == path[shared]) {
+                shared++;
+            }
+            writeVarint(out, shared);
+            writeVarint(out, path.length - shared);
+            out.write(path, shared, path.length - shared);
+            out.write(hexToBytes(entry.getValue()));
+            previous = path;
+        }
+
+        Path dir = tigDir.resolve(MANIFESTS_DIR);
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(commitId + ".tmp");
+        Files.write(tmp, out.toByteArray());
+        bytesWritten.add(out.size());
+        Files.move(tmp, dir.resolve(commitId), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static SortedMap<String, String> readManifest(Path manifestFile) throws IOException {
+        PhaseTimer timer = Phase.LOG_PARSE.start();
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(manifestFile));
+        if (in.getInt() != MANIFEST_MAGIC) {
+            throw new IOException("Not a manifest: " + manifestFile);
+        }
+        int count = in.getInt();
+        SortedMap<String, String> manifest = new TreeMap<>();
+        byte[] path = new byte[256];
+        byte[] hash = new byte[HASH_LEN];
+        for (int i = 0; i < count; i++) {
+            int shared = (int) readVarint(in);
+            int suffix = (int) readVarint(in);
+            if (shared + suffix > path.length) {
+                path = Arrays.copyOf(path, Math.max(path.length * 2, shared + suffix));
+            }
+            in.get(path, shared, suffix);
+            in.get(hash);
+            manifest.put(new String(path, 0, shared + suffix, StandardCharsets.UTF_8), bytesToHex(hash, HASH_LEN));
+        }
+        bytesRead.add(in.capacity());
+        timer.end(manifestFile.getFileName().toString(), count, in.capacity());
+        return manifest;
+    }
+
+    // Converts a commits.csv written by earlier versions into the binary log, once
+    private static void importLegacyCommits(Path tigDir) throws IOException {
+        Path legacyFile = tigDir.resolve(LEGACY_COMMIT_FILE);
+        if (!Files.exists(legacyFile)) {
+            return;
+        }
+
+        // commits.csv is only renamed once everything is imported, so an interrupted import starts over
+        commitCache.clear();
+        Files.deleteIfExists(tigDir.resolve(COMMIT_LOG_FILE));
+        Files.deleteIfExists(tigDir.resolve(COMMIT_INDEX_FILE));
+        Files.deleteIfExists(tigDir.resolve(COMMIT_IDS_FILE));
+
+        // The log and its index are written in one sequential pass and commits.ids is sorted once at the
+        // end, so the import stays linear however long the history is
+        String parent = "";
+        List<byte[]> ids = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(legacyFile);
+             OutputStream log = new BufferedOutputStream(Files.newOutputStream(tigDir.resolve(COMMIT_LOG_FILE)));
+             DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tigDir.resolve(COMMIT_INDEX_FILE))))) {
+            long offset = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length < 3) {
+                    continue;
+                }
+                byte[] id = commitIdBytes(parts[0]);
+                if (!seen.add(parts[0])) {
+                    System.err.println("Warning: Skipped duplicate commit ID in " + LEGACY_COMMIT_FILE + ": " + parts[0]);
+                    continue;
+                }
+                Map<String, String> files = new LinkedHashMap<>();
+                if (parts.length > 4) {
+                    String[] paths = parts[3].split(" ");
+                    String[] hashes = parts[4].split(" ");
+                    for (int i = 0; i < Math.min(paths.length, hashes.length); i++) {
+                        files.put(paths[i], hashes[i]);
+                    }
+                }
+                byte[] record = commitRecord(new Commit(parts[0], parts[1], parts[2], parent, files));
+                log.write(record);
+                index.write(id);
+                index.writeLong(offset);
+                offset += record.length;
+                ids.add(id);
+                parent = parts[0];
+            }
+        }
+
+        Integer[] order = new Integer[ids.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(ids.get(a), ids.get(b)));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tigDir.resolve(COMMIT_IDS_FILE))))) {
+            for (int sequence : order) {
+                out.write(ids.get(sequence));
+                out.writeInt(sequence);
+            }
+        }
+
+        Files.move(legacyFile, tigDir.resolve(LEGACY_COMMIT_FILE + ".imported"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + channel);
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Blobs live once per content hash under .tig/objects/<first two hex chars>/<rest>
+    private static Path objectPath(Path tigDir, String hash) {
+        return tigDir.resolve(OBJECTS_DIR).resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    // Stores the current content of a working file and returns its hash. Content that is already in
+    // the store is not copied again, whichever commit first wrote it.
+    private static String storeObject(Path tigDir, String relativePath, Path source) throws IOException {
+        String hash = cachedHash(tigDir, relativePath, source);
+        if (hasObject(tigDir, hash)) {
+            return hash;
+        }
+        if (Files.size(source) >= CHUNK_THRESHOLD) {
+            return storeChunked(tigDir, source);
+        }
+
+        Path dest = objectPath(tigDir, hash);
+        Files.createDirectories(dest.getParent());
+        Path tmp = Files.createTempFile(dest.getParent(), hash, ".tmp");
+        try {
+            PhaseTimer timer = Phase.COPY.start();
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+            long size = Files.size(tmp);
+            bytesRead.add(size);
+            bytesWritten.add(size);
+            timer.end(relativePath, 1, size);
+            // The file may have changed since it was hashed, so name the object after what was copied
+            String copiedHash = calculateHash(tmp);
+            if (!copiedHash.equals(hash)) {
+                hash = copiedHash;
+                dest = objectPath(tigDir, hash);
+                Files.createDirectories(dest.getParent());
+            }
+            Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return hash;
+    }
+
+    // Older repositories kept a copy of every blob in a .tig/<commitId>/<hash>.bck directory per
+    // commit. Move those blobs into the object store the first time the repository is used; a marker
+    // file records that the migration is done, so later commands skip the directory scan.
+    private static void migrateCommitDirs(Path tigDir) throws IOException {
+        Path marker = tigDir.resolve(COMMIT_DIRS_MIGRATED_FILE);
+        if (!Files.isDirectory(tigDir) || Files.exists(marker)) {
+            return;
+        }
+
+        List<Path> commitDirs = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(tigDir,
+                entry -> COMMIT_ID_DIR.matcher(entry.getFileName().toString()).matches() && Files.isDirectory(entry))) {
+            for (Path entry : entries) {
+                commitDirs.add(entry);
+            }
+        }
+
+        for (Path commitDir : commitDirs) {
+            List<Path> blobs = new ArrayList<>();
+            boolean onlyBlobs = true;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(commitDir)) {
+                for (Path entry : entries) {
+                    if (entry.getFileName().toString().endsWith(".bck") && Files.isRegularFile(entry)) {
+                        blobs.add(entry);
+                    } else {
+                        onlyBlobs = false;
+                    }
+                }
+            }
+            // A directory without blobs is not one of ours, whatever its name
+            if (blobs.isEmpty()) {
+                continue;
+            }
+            for (Path blob : blobs) {
+                String name = blob.getFileName().toString();
+                String hash = name.substring(0, name.length() - ".bck".length());
+                Path dest = objectPath(tigDir, hash);
+                if (hasObject(tigDir, hash)) {
+                    Files.delete(blob);
+                } else {
+                    Files.createDirectories(dest.getParent());
+                    Files.move(blob, dest, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            if (onlyBlobs) {
+                Files.delete(commitDir);
+            }
+        }
+        Files.write(marker, new byte[0]);
+    }
+
+    // Splits a large file at content-defined boundaries and stores every chunk as an object of its own,
+    // so a file that grew or changed in places shares all its other chunks with earlier versions. The
+    // file's hash names a chunk list in .tig/chunks/ of (chunk hash, length) records. The file is hashed
+    // as it is chunked, so the list always describes exactly the bytes that were stored.
+    private static String storeChunked(Path tigDir, Path source) throws IOException {
+        PhaseTimer timer = Phase.COPY.start();
+        long size = 0;
+        MessageDigest fileDigest = newDigest();
+        ByteArrayOutputStream chunkList = new ByteArrayOutputStream();
+        byte[] buffer = new byte[2 * CHUNK_MAX];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        try (InputStream in = Files.newInputStream(source)) {
+            while (true) {
+                if (!eof && end - start < CHUNK_MAX) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    end += in.readNBytes(buffer, end, buffer.length - end);
+                    eof = end < buffer.length;
+                }
+                if (start == end) {
+                    break;
+                }
+                int length = chunkLength(buffer, start, end - start);
+                size += length;
+                fileDigest.update(buffer, start, length);
+                chunkList.write(hexToBytes(storeChunk(tigDir, buffer, start, length)));
+                chunkList.write(ByteBuffer.allocate(Integer.BYTES).putInt(length).array());
+                start += length;
+            }
+        }
+
+        String hash = bytesToHex(fileDigest.digest(), HASH_LEN);
+        Path dest = chunkListPath(tigDir, hash);
+        Files.createDirectories(dest.getParent());
+        Path tmp = Files.createTempFile(dest.getParent(), hash, ".tmp");
+        try {
+            Files.write(tmp, chunkList.toByteArray());
+            Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        bytesRead.add(size);
+        bytesWritten.add(chunkList.size());
+        timer.end(source.toString(), chunkList.size() / CHUNK_LIST_RECORD, size);
+        return hash;
+    }
+
+    private static String storeChunk(Path tigDir, byte[] data, int offset, int length) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(data, offset, length);
+        String hash = bytesToHex(digest.digest(), HASH_LEN);
+        if (hasObject(tigDir, hash)) {
+            return hash;
+        }
+        Path dest = objectPath(tigDir, hash);
+        Files.createDirectories(dest.getParent());
+        Path tmp = Files.createTempFile(dest.getParent(), hash, ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                out.write(data, offset, length);
+            }
+            bytesWritten.add(length);
+            Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return hash;
+    }
+
+    // FastCDC cut point: a gear hash rolls over the bytes past CHUNK_MIN, and the chunk ends where its
+    // top bits are all zero. The stricter mask up to CHUNK_AVG and the looser one after it keep chunk
+    // sizes close to the average; CHUNK_MAX caps them.
+    private static int chunkLength(byte[] data, int offset, int available) {
+        if (available <= CHUNK_MIN) {
+            return available;
+        }
+        int limit = Math.min(available, CHUNK_MAX);
+        int normal = Math.min(limit, CHUNK_AVG);
+        long fingerprint = 0;
+        int i = CHUNK_MIN;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+            if ((fingerprint & CHUNK_MASK_STRICT) == 0) {
+                return i;
+            }
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+            if ((fingerprint & CHUNK_MASK_LOOSE) == 0) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    // Fixed seed: chunk boundaries, and so deduplication, must be the same in every run
+    private static long[] gearTable() {
+        Random random = new Random(0x5449_4743L);
+        long[] gear = new long[256];
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+        return gear;
+    }
+
+    private static Path chunkListPath(Path tigDir, String hash) {
+        return tigDir.resolve(CHUNKS_DIR).resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private static List<String> readChunkList(Path chunkList, List<Integer> lengths) throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(chunkList));
+        List<String> hashes = new ArrayList<>();
+        byte[] hash = new byte[HASH_LEN];
+        while (records.remaining() >= CHUNK_LIST_RECORD) {
+            records.get(hash);
+            hashes.add(bytesToHex(hash, HASH_LEN));
+            int length = records.getInt();
+            if (lengths != null) {
+                lengths.add(length);
+            }
+        }
+        return hashes;
+    }
+
+    private static boolean hasObject(Path tigDir, String hash) throws IOException {
+        return Files.exists(objectPath(tigDir, hash)) || Files.exists(chunkListPath(tigDir, hash)) || findPacked(tigDir, hash) != null;
+    }
+
+    // Opens a blob from the loose object store, as the concatenation of its chunks, or from a pack file
+    private static InputStream openObject(Path tigDir, String hash) throws IOException {
+        Path loose = objectPath(tigDir, hash);
+        if (Files.exists(loose)) {
+            return Files.newInputStream(loose);
+        }
+        Path chunkList = chunkListPath(tigDir, hash);
+        if (Files.exists(chunkList)) {
+            Iterator<String> chunks = readChunkList(chunkList, null).iterator();
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+                @Override
+                public boolean hasMoreElements() {
+                    return chunks.hasNext();
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    try {
+                        return openObject(tigDir, chunks.next());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+
+        PackedObject packed = findPacked(tigDir, hash);
+        if (packed == null) {
+            throw new FileNotFoundException("Object not found: " + hash);
+        }
+        return packed.open();
+    }
+
+    private static List<String> readObjectLines(Path tigDir, String hash, Charset charset) throws IOException {
+        // A decoder, unlike a charset, reports malformed input instead of replacing it
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(openObject(tigDir, hash), charset.newDecoder()))) {
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        }
+    }
+
+    // Pack entries are [type][raw size][compressed size], followed for deltas by the base hash, then
+    // the deflated content or deflated delta
+    private record PackedObject(Path tigDir, Pack pack, long offset) {
+        private ByteBuffer header() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(PACK_ENTRY_HEADER + HASH_LEN);
+            pack.channel().read(header, offset);
+            return header.flip();
+        }
+
+        long size() throws IOException {
+            return header().getLong(1);
+        }
+
+        InputStream open() throws IOException {
+            ByteBuffer header = header();
+            byte type = header.get(0);
+            int compressedSize = header.getInt(1 + Long.BYTES);
+            if (type == PACK_ENTRY_FULL) {
+                return new InflatingStream(pack.channel().map(FileChannel.MapMode.READ_ONLY, offset + PACK_ENTRY_HEADER, compressedSize));
+            }
+
+            byte[] baseKey = new byte[HASH_LEN];
+            header.get(PACK_ENTRY_HEADER, baseKey);
+            byte[] base = readBase(tigDir, bytesToHex(baseKey, HASH_LEN));
+            byte[] delta;
+            try (InputStream in = new InflatingStream(pack.channel().map(FileChannel.MapMode.READ_ONLY, offset + PACK_ENTRY_HEADER + HASH_LEN, compressedSize))) {
+                delta = in.readAllBytes();
+            }
+            return new ByteArrayInputStream(applyDelta(base, delta));
+        }
+    }
+
+    private static final class InflatingStream extends InputStream {
+        private final Inflater inflater = new Inflater();
+
+        InflatingStream(ByteBuffer compressed) {
+            inflater.setInput(compressed);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                int n = inflater.inflate(b, off, len);
+                if (n == 0 && !inflater.finished()) {
+                    throw new EOFException("Truncated pack entry");
+                }
+                return n == 0 ? -1 : n;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt pack entry", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+
+    private static synchronized List<Pack> loadPacks(Path tigDir) throws IOException {
+        Path dir = tigDir.resolve(PACKS_DIR);
+        if (packs != null && dir.equals(packsDir)) {
+            return packs;
+        }
+
+        packsDir = dir;
+        packs = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            packsMtime = Long.MIN_VALUE;
+            return packs;
+        }
+        packsMtime = Files.getLastModifiedTime(dir).to(TimeUnit.NANOSECONDS);
+        try (DirectoryStream<Path> indexFiles = Files.newDirectoryStream(dir, "*.idx")) {
+            for (Path indexFile : indexFiles) {
+                String name = indexFile.getFileName().toString();
+                Path packFile = indexFile.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+                try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                    MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+                    if (index.getInt(0) != PACK_MAGIC || index.getInt(4) != PACK_VERSION) {
+                        throw new IOException("Unsupported pack index: " + indexFile);
+                    }
+                    packs.add(new Pack(packFile, FileChannel.open(packFile, StandardOpenOption.READ), index, index.getInt(8)));
+                }
+            }
+        }
+        return packs;
+    }
+
+    private static void closePacks() throws IOException {
+        if (packs != null) {
+            for (Pack pack : packs) {
+                pack.channel().close();
+            }
+        }
+        packs = null;
+    }
+
+    // Binary search over the fixed-width records of each pack index
+    private static PackedObject findPacked(Path tigDir, String hash) throws IOException {
+        byte[] key = hexToBytes(hash);
+        for (Pack pack : loadPacks(tigDir)) {
+            int low = 0;
+            int high = pack.count() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int recordStart = 12 + mid * PACK_INDEX_RECORD;
+                int cmp = 0;
+                for (int i = 0; i < HASH_LEN && cmp == 0; i++) {
+                    cmp = Integer.compare(pack.index().get(recordStart + i) & 0xff, key[i] & 0xff);
+                }
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return new PackedObject(tigDir, pack, pack.index().getLong(recordStart + HASH_LEN));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void repack() throws IOException {
+        Path repoPath = Paths.get(System.getProperty("user.dir"));
+        Path tigDir = repoPath.resolve(".tig");
+        if (!Files.isDirectory(tigDir)) {
+            System.err.println("Error: Not a tig repository: " + repoPath);
+            return;
+        }
+
+        migrateCommitDirs(tigDir);
+        String summary = repack(tigDir, true);
+        System.out.println(summary == null ? "Nothing to pack." : summary);
+    }
+
+    // Bundles every object, loose or already packed, into a single new deflate-compressed pack.
+    // Successive revisions of the same path are stored as deltas against the previous revision.
+    private static String repack(Path tigDir, boolean useDeltas) throws IOException {
+        Path objectsDir = tigDir.resolve(OBJECTS_DIR);
+        SortedSet<String> hashes = new TreeSet<>();
+        List<Path> looseFiles = new ArrayList<>();
+        if (Files.isDirectory(objectsDir)) {
+            try (var files = Files.walk(objectsDir, 2)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    String hash = file.getParent().getFileName().toString() + file.getFileName().toString();
+                    if (hash.length() == HASH_LEN * 2 && Files.size(file) <= PACK_MAX_OBJECT) {
+                        hashes.add(hash);
+                        looseFiles.add(file);
+                    }
+                }
+            }
+        }
+        List<Pack> oldPacks = new ArrayList<>(loadPacks(tigDir));
+        for (Pack pack : oldPacks) {
+            for (int i = 0; i < pack.count(); i++) {
+                byte[] key = new byte[HASH_LEN];
+                pack.index().get(12 + i * PACK_INDEX_RECORD, key);
+                hashes.add(bytesToHex(key, HASH_LEN));
+            }
+        }
+        if (hashes.isEmpty()) {
+            return null;
+        }
+        Map<String, String> deltaBases = useDeltas ? planDeltas(tigDir, hashes) : Collections.emptyMap();
+
+        Path dir = tigDir.resolve(PACKS_DIR);
+        Files.createDirectories(dir);
+        String packName = "pack-" + UUID.randomUUID().toString().substring(0, 16);
+        Path packTmp = dir.resolve(packName + ".pack.tmp");
+        Path indexTmp = dir.resolve(packName + ".idx.tmp");
+        ByteBuffer index = ByteBuffer.allocate(12 + hashes.size() * PACK_INDEX_RECORD);
+        index.putInt(PACK_MAGIC).putInt(PACK_VERSION).putInt(hashes.size());
+
+        long rawBytes = 0;
+        int deltas = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (FileChannel out = FileChannel.open(packTmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer fileHeader = ByteBuffer.allocate(12).putInt(PACK_MAGIC).putInt(PACK_VERSION).putInt(hashes.size());
+            out.write(fileHeader.flip());
+            for (String hash : hashes) {
+                long offset = out.position();
+                index.put(hexToBytes(hash)).putLong(offset);
+
+                byte[] delta = null;
+                long rawSize = 0;
+                String base = deltaBases.get(hash);
+                if (base != null) {
+                    byte[] target = readBase(tigDir, hash);
+                    rawSize = target.length;
+                    delta = computeDelta(readBase(tigDir, base), target);
+                    // Not worth a reconstruction step unless it at least halves the entry
+                    if (delta.length > target.length / 2) {
+                        delta = null;
+                    }
+                }
+
+                ByteBuffer entryHeader = ByteBuffer.allocate(PACK_ENTRY_HEADER);
+                long dataStart = offset + PACK_ENTRY_HEADER + (delta != null ? HASH_LEN : 0);
+                if (delta != null) {
+                    out.write(ByteBuffer.wrap(hexToBytes(base)), offset + PACK_ENTRY_HEADER);
+                }
+                out.position(dataStart);
+                deflater.reset();
+                DeflaterOutputStream body = new DeflaterOutputStream(Channels.newOutputStream(out), deflater, HASH_BUFFER_SIZE);
+                if (delta != null) {
+                    body.write(delta);
+                    deltas++;
+                } else {
+                    rawSize = 0;
+                    try (InputStream in = openObject(tigDir, hash)) {
+                        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+                        int n;
+                        while ((n = in.read(buffer)) != -1) {
+                            body.write(buffer, 0, n);
+                            rawSize += n;
+                        }
+                    }
+                }
+                body.finish();
+                body.flush();
+                long end = out.position();
+                entryHeader.put(delta != null ? PACK_ENTRY_DELTA : PACK_ENTRY_FULL).putLong(rawSize).putInt((int) (end - dataStart));
+                out.write(entryHeader.flip(), offset);
+                rawBytes += rawSize;
+            }
+        } finally {
+            deflater.end();
+        }
+        Files.write(indexTmp, index.array());
+
+        // Publish the pack before its index so readers never see an index without its data
+        Files.move(packTmp, dir.resolve(packName + ".pack"), StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexTmp, dir.resolve(packName + ".idx"), StandardCopyOption.ATOMIC_MOVE);
+        closePacks();
+        for (Pack pack : oldPacks) {
+            String oldName = pack.packFile().getFileName().toString();
+            Files.deleteIfExists(pack.packFile());
+            Files.deleteIfExists(pack.packFile().resolveSibling(oldName.substring(0, oldName.length() - ".pack".length()) + ".idx"));
+        }
+        for (Path file : looseFiles) {
+            Files.delete(file);
+            try (DirectoryStream<Path> rest = Files.newDirectoryStream(file.getParent())) {
+                if (!rest.iterator().hasNext()) {
+                    Files.delete(file.getParent());
+                }
+            }
+        }
+
+        long packedBytes = Files.size(dir.resolve(packName + ".pack"));
+        return "Packed " + hashes.size() + " objects (" + deltas + " as deltas) into " + packName
+                + " (" + rawBytes + " bytes -> " + packedBytes + " bytes)";
+    }
+
+    // Walks the commit history in order and picks, for every object first seen as a new revision of
+    // a path, the previous revision of that path as its delta base. Bases are always assigned before
+    // the objects that use them, so chains cannot form cycles, and they are cut at MAX_DELTA_DEPTH.
+    private static Map<String, String> planDeltas(Path tigDir, Set<String> packable) throws IOException {
+        Map<String, String> bases = new HashMap<>();
+        Map<String, Integer> depths = new HashMap<>();
+        Map<String, String> lastRevision = new HashMap<>();
+        int commitCount = commitCount(tigDir);
+        for (int c = 0; c < commitCount; c++) {
+            for (Map.Entry<String, String> file : readCommitAt(tigDir, c).files().entrySet()) {
+                String hash = file.getValue();
+                String previous = lastRevision.put(file.getKey(), hash);
+                if (depths.containsKey(hash) || !packable.contains(hash)) {
+                    continue;
+                }
+                int baseDepth = previous == null || !depths.containsKey(previous) ? -1 : depths.get(previous);
+                if (baseDepth < 0 || baseDepth + 1 > MAX_DELTA_DEPTH
+                        || objectSize(tigDir, hash) > DELTA_MAX_OBJECT || objectSize(tigDir, previous) > DELTA_MAX_OBJECT) {
+                    depths.put(hash, 0);
+                } else {
+                    bases.put(hash, previous);
+                    depths.put(hash, baseDepth + 1);
+                }
+            }
+        }
+        return bases;
+    }
+
+    private static long objectSize(Path tigDir, String hash) throws IOException {
+        Path loose = objectPath(tigDir, hash);
+        if (Files.exists(loose)) {
+            return Files.size(loose);
+        }
+        Path chunkList = chunkListPath(tigDir, hash);
+        if (Files.exists(chunkList)) {
+            List<Integer> lengths = new ArrayList<>();
+            readChunkList(chunkList, lengths);
+            return lengths.stream().mapToLong(Integer::longValue).sum();
+        }
+        PackedObject packed = findPacked(tigDir, hash);
+        if (packed == null) {
+            throw new FileNotFoundException("Object not found: " + hash);
+        }
+        return packed.size();
+    }
+
+    // Reads a whole object, keeping it in a bounded LRU cache since delta chains share their bases
+    private static byte[] readBase(Path tigDir, String hash) throws IOException {
+        synchronized (baseCache) {
+            byte[] cached = baseCache.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        byte[] content;
+        try (InputStream in = openObject(tigDir, hash)) {
+            content = in.readAllBytes();
+        }
+        synchronized (baseCache) {
+            if (baseCache.put(hash, content) == null) {
+                baseCacheSize += content.length;
+            }
+            Iterator<byte[]> eldest = baseCache.values().iterator();
+            while (baseCacheSize > BASE_CACHE_BYTES && eldest.hasNext()) {
+                baseCacheSize -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+        return content;
+    }
+
+    // Delta format: base size, target size, then a sequence of copy (offset, length) and insert
+    // (length, bytes) instructions, all sizes as unsigned varints. Matches are found by indexing
+    // DELTA_BLOCK-sized blocks of the base and rolling a hash of the same width over the target.
+    private static byte[] computeDelta(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int blocks = base.length / DELTA_BLOCK;
+        int capacity = Integer.highestOneBit(Math.max(16, blocks * 2)) << 1;
+        int[] slotOffsets = new int[capacity];
+        int[] slotHashes = new int[capacity];
+        Arrays.fill(slotOffsets, -1);
+        for (int b = 0; b < blocks; b++) {
+            int hash = blockHash(base, b * DELTA_BLOCK);
+            int slot = mix(hash) & (capacity - 1);
+            while (slotOffsets[slot] != -1) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slotOffsets[slot] = b * DELTA_BLOCK;
+            slotHashes[slot] = hash;
+        }
+
+        int power = 1;
+        for (int i = 1; i < DELTA_BLOCK; i++) {
+            power *= 31;
+        }
+        int literalStart = 0;
+        int i = 0;
+        int hash = target.length >= DELTA_BLOCK ? blockHash(target, 0) : 0;
+        while (blocks > 0 && i + DELTA_BLOCK <= target.length) {
+            int match = -1;
+            for (int slot = mix(hash) & (capacity - 1); slotOffsets[slot] != -1; slot = (slot + 1) & (capacity - 1)) {
+                if (slotHashes[slot] == hash && Arrays.equals(base, slotOffsets[slot], slotOffsets[slot] + DELTA_BLOCK, target, i, i + DELTA_BLOCK)) {
+                    match = slotOffsets[slot];
+                    break;
+                }
+            }
+            if (match < 0) {
+                if (i + DELTA_BLOCK < target.length) {
+                    hash = (hash - target[i] * power) * 31 + target[i + DELTA_BLOCK];
+                }
+                i++;
+                continue;
+            }
+
+            int baseStart = match;
+            int targetStart = i;
+            while (targetStart > literalStart && baseStart > 0 && base[baseStart - 1] == target[targetStart - 1]) {
+                baseStart--;
+                targetStart--;
+            }
+            int length = i - targetStart + DELTA_BLOCK;
+            while (baseStart + length < base.length && targetStart + length < target.length && base[baseStart + length] == target[targetStart + length]) {
+                length++;
+            }
+            writeInsert(out, target, literalStart, targetStart);
+            out.write(1);
+            writeVarint(out, baseStart);
+            writeVarint(out, length);
+            i = targetStart + length;
+            literalStart = i;
+            if (i + DELTA_BLOCK <= target.length) {
+                hash = blockHash(target, i);
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        if (readVarint(in) != base.length) {
+            throw new IOException("Delta does not apply to its base");
+        }
+        byte[] target = new byte[(int) readVarint(in)];
+        int position = 0;
+        while (in.hasRemaining()) {
+            byte op = in.get();
+            if (op == 1) {
+                int offset = (int) readVarint(in);
+                int length = (int) readVarint(in);
+                System.arraycopy(base, offset, target, position, length);
+                position += length;
+            } else if (op == 2) {
+                int length = (int) readVarint(in);
+                in.get(target, position, length);
+                position += length;
+            } else {
+                throw new IOException("Corrupt delta");
+            }
+        }
+        if (position != target.length) {
+            throw new IOException("Corrupt delta");
+        }
+        return target;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        if (to > from) {
+            out.write(2);
+            writeVarint(out, to - from);
+            out.write(data, from, to - from);
+        }
+    }
+
+    private static int blockHash(byte[] data, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + DELTA_BLOCK; i++) {
+            hash = hash * 31 + data[i];
+        }
+        return hash;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String bytesToHex(byte[] bytes, int length) {
+        StringBuilder hexString = new StringBuilder();
+        for (int i = 0; i < length && i < bytes.length; i++) {
+            String hex = Integer.toHexString(0xff & bytes[i]);
+            if (hex.length() == 1) hexString.append('0');
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    // The staging area is an append-only journal of "path,hash" lines in which the last line for a path
+    // wins. Writers serialize on an exclusive lock over staged.lock, which also records the journal size
+    // right after the last compaction so that a journal is only rewritten once it has doubled.
+    private static FileChannel lockStaging(Path tigDir, boolean shared) throws IOException {
+        FileChannel channel = FileChannel.open(tigDir.resolve(STAGED_LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            channel.lock(0, Long.MAX_VALUE, shared);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // The lock is only held, never used, while the journal is read
+    @SuppressWarnings("try")
+    private static Map<String, String> loadStaged(Path tigDir) throws IOException {
+        if (!Files.exists(tigDir.resolve(STAGED_FILE))) return new HashMap<>();
+        try (FileChannel lock = lockStaging(tigDir, true)) {
+            return readStaged(tigDir);
+        }
+    }
+
+    // Lines that are not a path and a full hash are what an interrupted add leaves behind; skip them
+    private static Map<String, String> readStaged(Path tigDir) throws IOException {
+        Path stagedFile = tigDir.resolve(STAGED_FILE);
+        if (!Files.exists(stagedFile)) return new HashMap<>();
+
+        Map<String, String> map = new HashMap<>();
+        for (String line : Files.readAllLines(stagedFile)) {
+            int comma = line.lastIndexOf(',');
+            if (comma > 0 && line.length() - comma - 1 == 2 * HASH_LEN && line.substring(comma + 1).matches("[0-9a-f]+")) {
+                map.put(line.substring(0, comma), line.substring(comma + 1));
+            }
+        }
+        return map;
+    }
+
+    private static void appendStaged(Path tigDir, Map<String, String> entries) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            lines.append(entry.getKey()).append(',').append(entry.getValue()).append('\n');
         }
-    
-        List<String> commits = Files.readAllLines(commitsFile, StandardCharsets.UTF_8);
-        String latestCommitId = null;
-        String committedHash = null;
-    
-        for (int i = commits.size() - 1; i >= 0; i--) {
-            String[] parts = commits.get(i).split(",");
-            String commitId = parts[0];
-            String[] files = parts[3].split(" ");
-            String[] hashes = parts[4].split(" ");
-    
-            for (int j = 0; j < files.length; j++) {
-                if (files[j].equals(fileName)) {
-                    latestCommitId = commitId;
-                    committedHash = hashes[j];
-                    break;
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        Path stagedFile = tigDir.resolve(STAGED_FILE);
+        try (FileChannel lock = lockStaging(tigDir, false)) {
+            long journalSize;
+            try (FileChannel journal = FileChannel.open(stagedFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long position = journal.size();
+                // Terminate a line left unfinished by an interrupted add, so it is not glued onto ours
+                ByteBuffer last = ByteBuffer.allocate(1);
+                if (position > 0 && journal.read(last, position - 1) == 1 && last.get(0) != '\n') {
+                    position += journal.write(ByteBuffer.wrap(new byte[] {'\n'}), position);
+                }
+                while (buffer.hasRemaining()) {
+                    position += journal.write(buffer, position);
                 }
+                journalSize = journal.size();
             }
-    
-            if (committedHash != null) {
+            if (journalSize > Math.max(STAGED_COMPACT_BYTES, 2 * compactedSize(lock))) {
+                compactStaged(tigDir, lock);
+            }
+        }
+    }
+
+    // Rewrites the journal with one line per path; the caller holds the exclusive staging lock
+    private static void compactStaged(Path tigDir, FileChannel lock) throws IOException {
+        Path stagedFile = tigDir.resolve(STAGED_FILE);
+        Path tmp = tigDir.resolve(STAGED_FILE + ".tmp");
+        saveMapToCsv(tmp.toString(), new TreeMap<>(readStaged(tigDir)));
+        Files.move(tmp, stagedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        setCompactedSize(lock, Files.size(stagedFile));
+    }
+
+    private static void clearStaged(Path tigDir, FileChannel lock) throws IOException {
+        Files.deleteIfExists(tigDir.resolve(STAGED_FILE));
+        setCompactedSize(lock, 0);
+    }
+
+    private static long compactedSize(FileChannel lock) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        return lock.read(buffer, 0) == Long.BYTES ? buffer.getLong(0) : 0;
+    }
+
+    private static void setCompactedSize(FileChannel lock, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, size);
+        lock.write(buffer, 0);
+    }
+
+    private static void saveMapToCsv(String filename, Map<String, String> map) throws IOException {
+        // Path path = Paths.get(REPO_DIR, filename);
+        Path path = Paths.get(filename);
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writer.write(entry.getKey() + "," + entry.getValue());
+                writer.newLine();
+            }
+        }
+    }
+
+    private static void bench(String[] args) throws IOException {
+        switch (args[0]) {
+            case "hash":
+                benchHash(args.length > 1 ? parseSize(args[1]) : 4L * 1024 * 1024 * 1024);
+                break;
+
+            case "diff":
+                benchDiff(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+                break;
+
+            case "delta":
+                benchDelta(args.length > 1 ? Integer.parseInt(args[1]) : 50, args.length > 2 ? Integer.parseInt(args[2]) : 20000);
+                break;
+
+            case "generate": {
+                if (args.length < 2 || args[1].startsWith("--")) {
+                    System.err.println("Usage: java Tig bench generate <directory> [--files n] [--size s] [--max-size s] [--commits n] [--churn f] [--seed n] [--jobs n]");
+                    return;
+                }
+                Map<String, String> options = benchOptions(args, 2);
+                setBenchJobs(options);
+                Path dir = Paths.get(System.getProperty("user.dir")).resolve(args[1]);
+                if (Files.exists(dir.resolve(".tig"))) {
+                    System.err.println("Error: Already a tig repository: " + dir);
+                    return;
+                }
+                RepoShape shape = RepoShape.of(parseCount(options.getOrDefault("files", "1k")), options);
+                long start = System.nanoTime();
+                generateRepo(dir, shape);
+                System.out.printf("Generated %s in %.1f s%n", shape, (System.nanoTime() - start) / 1_000_000_000.0);
+                break;
+            }
+
+            case "commands": {
+                Map<String, String> options = benchOptions(args, 1);
+                setBenchJobs(options);
+                benchCommands(options);
                 break;
             }
+
+            default:
+                System.err.println("Unknown benchmark: " + args[0]);
         }
-    
-        if (committedHash == null) {
-            System.out.println("Error: The file: " + fileName + "  was not found in any commit.");
-            return;
+    }
+
+    // Hashes files from 1 KB up to maxSize (x4 per step) with the read-all and streaming
+    // implementations, reporting the best wall time and the heap bytes allocated per hash.
+    private static void benchHash(long maxSize) throws IOException {
+        Path dir = Files.createTempDirectory("tig-bench");
+        try {
+            System.out.printf("%-10s %-10s %12s %12s %16s%n", "size", "method", "best_ms", "mb_per_s", "heap_alloc_bytes");
+            for (long size = 1024; size <= maxSize; size *= 4) {
+                Path file = dir.resolve("blob-" + size);
+                writeRandomFile(file, size);
+                int runs = size <= 64L * 1024 * 1024 ? 5 : 1;
+                benchHashRun(size, "read-all", runs, () -> calculateHashReadAll(file));
+                benchHashRun(size, "stream", runs, () -> calculateHash(file));
+                Files.delete(file);
+            }
+        } finally {
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir)) {
+                for (Path leftover : leftovers) {
+                    Files.delete(leftover);
+                }
+            }
+            Files.delete(dir);
         }
-    
-        Path committedFilePath = tigDir.resolve(latestCommitId).resolve(committedHash + ".bck");
-        Path currentFilePath = repoPath.resolve(fileName);
-        List<String> committedLines;
-        List<String> currentLines;
-    
-        // issue reading the file in utf-8, tried different formats 
+    }
+
+    // Commits `revisions` revisions of one text file of `lines` lines, each changing a few lines,
+    // then compares pack size and restore latency with full copies against delta-compressed packs.
+    private static void benchDelta(int revisions, int lines) throws IOException {
+        Path tigDir = Files.createTempDirectory("tig-bench").resolve(".tig");
+        Files.createDirectories(tigDir);
+        Path work = tigDir.getParent().resolve("work.txt");
         try {
-            committedLines = Files.readAllLines(committedFilePath, StandardCharsets.UTF_8);
-            currentLines = Files.readAllLines(currentFilePath, StandardCharsets.UTF_8);
-        } catch (MalformedInputException e) {
-            System.out.println("Issues found in UTF-8. Trying UTF-16.");
-    
-            try {
-                committedLines = Files.readAllLines(committedFilePath, StandardCharsets.UTF_16);
-                currentLines = Files.readAllLines(currentFilePath, StandardCharsets.UTF_16);
-            } catch (MalformedInputException ex) {
-                System.out.println("Issues found in UTF-16. Trying binary.");
-    
-                // if UTF-16 fails, read as binary
-                committedLines = readAsBinaryLines(committedFilePath);
-                currentLines = readAsBinaryLines(currentFilePath);
+            Random random = new Random(42);
+            List<String> content = new ArrayList<>();
+            for (int i = 0; i < lines; i++) {
+                content.add("line " + i + " value=" + random.nextInt(1_000_000));
+            }
+            List<String> revisionHashes = new ArrayList<>();
+            String parent = "";
+            for (int r = 0; r < revisions; r++) {
+                for (int change = 0; change < 5; change++) {
+                    content.set(random.nextInt(lines), "changed in revision " + r + " value=" + random.nextInt(1_000_000));
+                }
+                Files.write(work, content);
+                String hash = storeObject(tigDir, "work.txt", work);
+                revisionHashes.add(hash);
+                String commitId = UUID.randomUUID().toString().substring(0, COMMIT_ID_LEN);
+                appendCommit(tigDir, new Commit(commitId, Instant.now().toString(), "revision " + r, parent, Map.of("work.txt", hash)));
+                parent = commitId;
+            }
+            long looseBytes = 0;
+            for (String hash : revisionHashes) {
+                looseBytes += Files.size(objectPath(tigDir, hash));
+            }
+            System.out.printf("%d revisions of a %d line file, %d bytes as loose copies%n", revisions, lines, looseBytes);
+            System.out.printf("%-8s %14s %18s %18s%n", "mode", "pack_bytes", "restore_all_ms", "restore_latest_ms");
+
+            for (boolean useDeltas : new boolean[] {false, true}) {
+                repack(tigDir, useDeltas);
+                synchronized (baseCache) {
+                    baseCache.clear();
+                    baseCacheSize = 0;
+                }
+                long packBytes = 0;
+                try (DirectoryStream<Path> packFiles = Files.newDirectoryStream(tigDir.resolve(PACKS_DIR), "*.pack")) {
+                    for (Path packFile : packFiles) {
+                        packBytes += Files.size(packFile);
+                    }
+                }
+
+                long start = System.nanoTime();
+                try (InputStream in = openObject(tigDir, revisionHashes.get(revisionHashes.size() - 1))) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+                long latest = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (String hash : revisionHashes) {
+                    try (InputStream in = openObject(tigDir, hash)) {
+                        in.transferTo(OutputStream.nullOutputStream());
+                    }
+                }
+                long all = System.nanoTime() - start;
+                System.out.printf("%-8s %14d %18.3f %18.3f%n", useDeltas ? "delta" : "full", packBytes, all / 1_000_000.0, latest / 1_000_000.0);
+            }
+        } finally {
+            closePacks();
+            try (var files = Files.walk(tigDir.getParent())) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
             }
         }
-    
-        generateUnifiedDiff(fileName, committedLines, currentLines);
     }
-    
-    private static void generateUnifiedDiff(String fileName, List<String> committedLines, List<String> currentLines) {
-        int committedLength = committedLines.size();
-        int currentLength = currentLines.size();
-        int maxLength = Math.max(committedLength, currentLength);
-    
-        List<String> diffResult = new ArrayList<>();
-        //int contextLines = 5; 
-    
-        for (int i = 0; i < maxLength; i++) {
-            String committedLine = (i < committedLength) ? committedLines.get(i) : null;
-            String currentLine = (i < currentLength) ? currentLines.get(i) : null;
-    
-            if (committedLine == null) {
-                diffResult.add("+ Line " + (i + 1) + ": " + currentLine);
-            } else if (currentLine == null) {
-                diffResult.add("- Line " + (i + 1) + ": " + committedLine);
-            } else if (!committedLine.equals(currentLine)) {
-                diffResult.add("- Line " + (i + 1) + ": " + committedLine);
-                diffResult.add("+ Line " + (i + 1) + ": " + currentLine);
-            } else {
-                if (i == 0 || i == maxLength - 1 || (!committedLines.get(i).equals(currentLines.get(i - 1)) && !committedLines.get(i).equals(currentLines.get(i + 1)))) {
-                    diffResult.add("  Line " + (i + 1) + ": " + committedLine);
+
+    // Times the diff engine on generated files of `lines` lines (and 4x that) for a few edit patterns
+    private static void benchDiff(int lines) {
+        System.out.printf("%-14s %10s %8s %12s %10s%n", "case", "lines", "hunks", "diff_lines", "best_ms");
+        for (int size : new int[] {lines, lines * 4}) {
+            Random random = new Random(size);
+            List<String> original = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                original.add("line " + i + " " + Long.toHexString(random.nextLong()));
+            }
+
+            List<String> shifted = new ArrayList<>(original);
+            shifted.add(0, "inserted at the top");
+
+            List<String> scattered = new ArrayList<>(original);
+            for (int edit = 0; edit < size / 100; edit++) {
+                int at = random.nextInt(scattered.size());
+                switch (edit % 3) {
+                    case 0 -> scattered.set(at, "changed " + edit);
+                    case 1 -> scattered.add(at, "added " + edit);
+                    default -> scattered.remove(at);
                 }
             }
+
+            // Only a few distinct lines, so there are no unique anchors and Myers does all the work
+            List<String> repetitive = new ArrayList<>(size);
+            List<String> repetitiveEdited = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                String line = "value " + random.nextInt(8);
+                repetitive.add(line);
+                repetitiveEdited.add(random.nextInt(50) == 0 ? "value " + random.nextInt(8) : line);
+            }
+
+            benchDiffRun("insert-top", original, shifted);
+            benchDiffRun("scattered-1%", original, scattered);
+            benchDiffRun("repetitive", repetitive, repetitiveEdited);
         }
-    
-        if (diffResult.isEmpty()) {
-            System.out.println("There is no difference between the current file and the committed version.");
-        } else {
-            System.out.println("Diff between committed and current version of " + fileName + ":");
-            diffResult.forEach(System.out::println);
+    }
+
+    private static void benchDiffRun(String name, List<String> oldLines, List<String> newLines) {
+        long best = Long.MAX_VALUE;
+        List<String> result = null;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            result = unifiedDiff(oldLines, newLines, DEFAULT_DIFF_CONTEXT);
+            best = Math.min(best, System.nanoTime() - start);
         }
+        long hunks = result.stream().filter(line -> line.startsWith("@@")).count();
+        System.out.printf("%-14s %10d %8d %12d %10.1f%n", name, oldLines.size(), hunks, result.size(), best / 1_000_000.0);
     }
-    
-    private static List<String> readAsBinaryLines(Path filePath) throws IOException {
-        List<String> lines = new ArrayList<>();
-        byte[] fileContent = Files.readAllBytes(filePath);
-        StringBuilder sb = new StringBuilder();
-    
-        for (byte b : fileContent) {
-            sb.append(String.format("%02x ", b));
+
+    private interface HashRun {
+        String run() throws IOException;
+    }
+
+    private static void benchHashRun(long size, String method, int runs, HashRun hashRun) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        try {
+            for (int i = 0; i < runs; i++) {
+                long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                hashRun.run();
+                best = Math.min(best, System.nanoTime() - start);
+                allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            }
+        } catch (OutOfMemoryError e) {
+            System.out.printf("%-10s %-10s %12s %12s %16s%n", formatSize(size), method, "failed", "-", e.getMessage());
+            return;
         }
-    
-        lines.add(sb.toString().trim());
-        return lines;
+        double millis = best / 1_000_000.0;
+        double mbPerSecond = size / (1024.0 * 1024.0) / (best / 1_000_000_000.0);
+        System.out.printf("%-10s %-10s %12.3f %12.1f %16d%n", formatSize(size), method, millis, mbPerSecond, allocated);
     }
 
-    
-    // private static void diff(String fileName) throws IOException {
-    //     Path repoPath = Paths.get(System.getProperty("user.dir"));
-    //     Path tigPath = repoPath.resolve(".tig");
+    // What `bench generate` builds: `files` text files whose sizes are log-normally distributed around
+    // `size` and capped at `maxSize`, committed once and then changed in `commits - 1` further commits,
+    // each rewriting a few lines in a `churn` fraction of the files
+    private record RepoShape(int files, long size, long maxSize, int commits, double churn, long seed) {
+        static RepoShape of(int files, Map<String, String> options) {
+            return new RepoShape(files,
+                    parseSize(options.getOrDefault("size", "1k")),
+                    parseSize(options.getOrDefault("max-size", "1m")),
+                    Math.max(1, Integer.parseInt(options.getOrDefault("commits", "10"))),
+                    Double.parseDouble(options.getOrDefault("churn", "0.01")),
+                    Long.parseLong(options.getOrDefault("seed", "42")));
+        }
 
-    //     List<Path> manifestFiles = Files.walk(tigPath)
-    //             .filter(file -> file.toString().endsWith(".csv"))
-    //             .collect(Collectors.toList());
-    //     manifestFiles.sort((file1, file2) -> file2.compareTo(file1));
+        int churnedFiles() {
+            return Math.max(1, (int) Math.round(files * churn));
+        }
 
-    //     Path latestManifest = manifestFiles.get(0);
-    //     String committedHash = null;
+        @Override
+        public String toString() {
+            return String.format("%d files (median %s, max %s), %d commits, %.2f%% churn, seed %d",
+                    files, formatSize(size), formatSize(maxSize), commits, churn * 100, seed);
+        }
+    }
 
-    //     try (BufferedReader reader = Files.newBufferedReader(latestManifest)) {
-    //         String line;
-    //         while ((line = reader.readLine()) != null) {
-    //             String[] parts = line.split(",");
-    //             if (parts[0].equals(fileName)) {
-    //                 committedHash = parts[1];
-    //                 break;
-    //             }
-    //         }
-    //     }
+    private record BenchResult(String benchmark, int files, int runs, double minMs, double medianMs, double meanMs) {}
 
-    //     if (committedHash == null) {
-    //         System.out.println("File not found in any commit.");
-    //         return;
-    //     }
+    private interface BenchStep {
+        void run() throws IOException;
+    }
 
-    //     Path committedDir = tigPath.resolve(committedHash);
-    //     Path committedFile = committedDir.resolve(fileName);
-    //     if (!Files.exists(committedFile)) {
-    //         System.out.println("Committed file not found: " + committedFile);
-    //         return;
-    //     }
+    // --name value pairs from args[from] on
+    private static Map<String, String> benchOptions(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        return options;
+    }
 
-    //     Path currentFile = repoPath.resolve(fileName);
-    //     if (!Files.exists(currentFile)) {
-    //         System.out.println("Current file not found: " + currentFile);
-    //         return;
-    //     }
+    // `--jobs n` among the bench options sets the parallelism of every command the benchmark runs
+    private static void setBenchJobs(Map<String, String> options) {
+        if (options.containsKey("jobs")) {
+            parallelism = Math.max(1, Integer.parseInt(options.get("jobs")));
+        }
+    }
 
-    //     try (BufferedReader committedReader = Files.newBufferedReader(committedFile);
-    //          BufferedReader currentReader = Files.newBufferedReader(currentFile)) {
-    //         String committedLine;
-    //         String currentLine;
-    //         while ((committedLine = committedReader.readLine()) != null) {
-    //             currentLine = currentReader.readLine();
-    //             if (currentLine == null) {
-    //                 System.out.println(committedLine);
-    //             } else if (!committedLine.equals(currentLine)) {
-    //                 System.out.println(committedLine);
-    //                 System.out.println("+" + currentLine);
-    //             }
-    //         }
+    // The same shape and seed always give the same working tree and the same history; only commit ids
+    // and dates differ between runs
+    private static void generateRepo(Path dir, RepoShape shape) throws IOException {
+        Files.createDirectories(dir);
+        runIn(dir, "init", dir.toString());
+        Random random = new Random(shape.seed());
+        double sigma = 1.0;
+        for (int i = 0; i < shape.files(); i++) {
+            long size = Math.min(shape.maxSize(), Math.max(1, (long) (shape.size() * Math.exp(sigma * random.nextGaussian()))));
+            Path file = dir.resolve(generatedPath(i));
+            Files.createDirectories(file.getParent());
+            List<String> lines = new ArrayList<>();
+            for (long written = 0; written < size; written += lines.get(lines.size() - 1).length() + 1) {
+                lines.add("line " + lines.size() + " " + Long.toHexString(random.nextLong()));
+            }
+            Files.write(file, lines);
+        }
+        runIn(dir, "add", "-A");
+        runIn(dir, "commit", "generated commit 1");
+        for (int commit = 2; commit <= shape.commits(); commit++) {
+            churn(dir, shape, random);
+            runIn(dir, "add", "-A");
+            runIn(dir, "commit", "generated commit " + commit);
+        }
+    }
 
-    //         while ((currentLine = currentReader.readLine()) != null) {
-    //             System.out.println("+" + currentLine);
-    //         }
-    //     }
-    // }
+    // Rewrites a churn fraction of the generated files
+    private static void churn(Path dir, RepoShape shape, Random random) throws IOException {
+        SortedSet<String> changed = new TreeSet<>();
+        for (int i = 0; i < shape.churnedFiles(); i++) {
+            changed.add(generatedPath(random.nextInt(shape.files())));
+        }
+        for (String path : changed) {
+            editLines(dir.resolve(path), random);
+        }
+    }
 
-    // private static void log(String num, String... args) throws IOException {
-    //     Path commitsFile = Paths.get(System.getProperty("user.dir"), REPO_DIR, ".tig", COMMIT_FILE);
-    //     List<String> commits = Files.lines(commitsFile).collect(Collectors.toList());
+    // Replaces about 1% of the lines of a file
+    private static void editLines(Path file, Random random) throws IOException {
+        List<String> lines = new ArrayList<>(Files.readAllLines(file));
+        for (int edit = 0; edit <= lines.size() / 100; edit++) {
+            lines.set(random.nextInt(lines.size()), "changed " + Long.toHexString(random.nextLong()));
+        }
+        Files.write(file, lines);
+    }
 
-    //     int start = Math.max(0, commits.size() - Integer.parseInt(num));
-    //     for (int i = commits.size() - 1; i >= start; i--) {
-    //         String[] parts = commits.get(i).split(",");
-    //         System.out.println("Commit ID: " + parts[0]);
-    //         System.out.println("Date: " + parts[1]);
-    //         System.out.println("Message: " + parts[2]);
-    //         System.out.println();
-    //     }
-    // }
+    // 100 files per directory, 100 directories per level, so a million files are three levels deep
+    private static String generatedPath(int i) {
+        return "d" + (i / 10_000) + "/d" + (i / 100 % 100) + "/f" + i + ".txt";
+    }
 
-    private static String calculateHash(Path file) throws IOException {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] bytes = Files.readAllBytes(file);
-            byte[] hashBytes = digest.digest(bytes);
-            return bytesToHex(hashBytes, HASH_LEN);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException("Unable to calculate hash.", e);
+    // Generates a repository of each size and times every command on it in this process. Before each
+    // run all in-memory state is dropped, so a run costs what a fresh `java Tig` would pay apart from
+    // JVM startup and JIT warm-up.
+    private static void benchCommands(Map<String, String> options) throws IOException {
+        int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        if (runs < 1 || warmup < 0) {
+            System.err.println("Error: --runs must be at least 1 and --warmup at least 0");
+            return;
+        }
+        String format = options.getOrDefault("format", "text");
+        List<BenchResult> results = new ArrayList<>();
+        for (String files : options.getOrDefault("files", "1k,100k,1m").split(",")) {
+            RepoShape shape = RepoShape.of(parseCount(files), options);
+            Path dir = Files.createTempDirectory("tig-bench");
+            try {
+                System.err.println("Generating " + shape);
+                generateRepo(dir, shape);
+                benchCommandsOn(dir, shape, runs, warmup, results);
+            } finally {
+                dropProcessState();
+                try (var tree = Files.walk(dir)) {
+                    for (Path file : (Iterable<Path>) tree.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+
+        switch (format) {
+            case "csv":
+                System.out.println("benchmark,files,runs,min_ms,median_ms,mean_ms");
+                for (BenchResult r : results) {
+                    System.out.printf(Locale.ROOT, "%s,%d,%d,%.3f,%.3f,%.3f%n", r.benchmark(), r.files(), r.runs(), r.minMs(), r.medianMs(), r.meanMs());
+                }
+                break;
+
+            case "json":
+                System.out.println("[");
+                for (int i = 0; i < results.size(); i++) {
+                    BenchResult r = results.get(i);
+                    System.out.printf(Locale.ROOT, "  {\"benchmark\": \"%s\", \"files\": %d, \"runs\": %d, \"min_ms\": %.3f, \"median_ms\": %.3f, \"mean_ms\": %.3f}%s%n",
+                            r.benchmark(), r.files(), r.runs(), r.minMs(), r.medianMs(), r.meanMs(), i + 1 < results.size() ? "," : "");
+                }
+                System.out.println("]");
+                break;
+
+            default:
+                System.out.printf("%-16s %10s %6s %12s %12s %12s%n", "benchmark", "files", "runs", "min_ms", "median_ms", "mean_ms");
+                for (BenchResult r : results) {
+                    System.out.printf("%-16s %10d %6d %12.3f %12.3f %12.3f%n", r.benchmark(), r.files(), r.runs(), r.minMs(), r.medianMs(), r.meanMs());
+                }
         }
     }
 
-    private static String bytesToHex(byte[] bytes, int length) {
-        StringBuilder hexString = new StringBuilder();
-        for (int i = 0; i < length && i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xff & bytes[i]);
-            if (hex.length() == 1) hexString.append('0');
-            hexString.append(hex);
+    private static void benchCommandsOn(Path dir, RepoShape shape, int runs, int warmup, List<BenchResult> results) throws IOException {
+        Random random = new Random(shape.seed() + 1);
+        String file = generatedPath(0);
+        String[] head = new String[1];
+        String[] previous = new String[1];
+
+        results.add(benchCommand("status", shape, runs, warmup, null, () -> runIn(dir, "status")));
+        results.add(benchCommand("status-no-cache", shape, runs, warmup, null, () -> runIn(dir, "--no-cache", "status")));
+        results.add(benchCommand("log", shape, runs, warmup, null, () -> runIn(dir, "log")));
+        results.add(benchCommand("log-file", shape, runs, warmup, null, () -> runIn(dir, "log", "--", file)));
+        results.add(benchCommand("diff", shape, runs, warmup,
+                () -> editLines(dir.resolve(file), random),
+                () -> runIn(dir, "diff", file)));
+        // Each run commits a fresh churn of the tree; the edits themselves are not timed
+        results.add(benchCommand("add+commit", shape, runs, warmup,
+                () -> churn(dir, shape, random),
+                () -> {
+                    runIn(dir, "add", "-A");
+                    runIn(dir, "commit", "bench commit");
+                }));
+        // Alternates between the last two commits, so every run restores one churn worth of files
+        results.add(benchCommand("checkout", shape, runs, warmup,
+                () -> {
+                    head[0] = readHead(dir.resolve(".tig"));
+                    if (previous[0] == null) {
+                        previous[0] = readCommitAt(dir.resolve(".tig"), commitCount(dir.resolve(".tig")) - 2).id();
+                    }
+                },
+                () -> {
+                    runIn(dir, "checkout", previous[0]);
+                    previous[0] = head[0];
+                }));
+    }
+
+    private static BenchResult benchCommand(String name, RepoShape shape, int runs, int warmup, BenchStep setup, BenchStep step) throws IOException {
+        long[] times = new long[runs];
+        for (int run = -warmup; run < runs; run++) {
+            if (setup != null) {
+                setup.run();
+            }
+            dropProcessState();
+            long start = System.nanoTime();
+            step.run();
+            if (run >= 0) {
+                times[run] = System.nanoTime() - start;
+            }
         }
-        return hexString.toString();
+        Arrays.sort(times);
+        double mean = Arrays.stream(times).average().orElse(0);
+        return new BenchResult(name, shape.files(), runs, times[0] / 1_000_000.0, (times[(runs - 1) / 2] + times[runs / 2]) / 2_000_000.0, mean / 1_000_000.0);
     }
 
-    private static Map<String, String> loadCsvToMap(String filename) throws IOException {
-        // Path path = Paths.get(REPO_DIR, filename);
-        Path path = Paths.get(filename);
-        if (!Files.exists(path)) return new HashMap<>();
+    // Runs a command as if tig had been started in dir, discarding its regular output. run() resets the
+    // parallelism, so the benchmark's own is passed on explicitly.
+    private static void runIn(Path dir, String... args) throws IOException {
+        String userDir = System.getProperty("user.dir");
+        PrintStream out = System.out;
+        List<String> argList = new ArrayList<>(List.of("--jobs", String.valueOf(parallelism)));
+        argList.addAll(Arrays.asList(args));
+        System.setProperty("user.dir", dir.toString());
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            run(argList.toArray(new String[0]));
+        } finally {
+            System.setOut(out);
+            System.setProperty("user.dir", userDir);
+        }
+    }
 
-        Map<String, String> map = new HashMap<>();
-        for (String line : Files.readAllLines(path)) {
-            String[] parts = line.split(",");
-            map.put(parts[0], parts[1]);
+    // Forgets everything kept in memory between commands, as if the process had just started
+    private static void dropProcessState() throws IOException {
+        saveIndex();
+        synchronized (Tig.class) {
+            index = null;
+            indexPath = null;
         }
-        return map;
+        commitCache.clear();
+        synchronized (manifestCache) {
+            manifestCache.clear();
+        }
+        synchronized (baseCache) {
+            baseCache.clear();
+            baseCacheSize = 0;
+        }
+        closePacks();
+        ignorePath = null;
+        ignoreMatcher = null;
     }
 
-    private static void saveMapToCsv(String filename, Map<String, String> map) throws IOException {
-        // Path path = Paths.get(REPO_DIR, filename);
-        Path path = Paths.get(filename);
-        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
-            for (Map.Entry<String, String> entry : map.entrySet()) {
-                writer.write(entry.getKey() + "," + entry.getValue());
-                writer.newLine();
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(size).nextBytes(chunk);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
             }
         }
     }
+
+    // A count such as 1000, 100k or 1m
+    private static int parseCount(String count) {
+        String lower = count.toLowerCase(Locale.ROOT);
+        char unit = lower.charAt(lower.length() - 1);
+        int multiplier = unit == 'k' ? 1000 : unit == 'm' ? 1_000_000 : 1;
+        return Integer.parseInt(multiplier == 1 ? lower : lower.substring(0, lower.length() - 1)) * multiplier;
+    }
+
+    private static long parseSize(String size) {
+        String lower = size.toLowerCase(Locale.ROOT);
+        char unit = lower.charAt(lower.length() - 1);
+        long multiplier = unit == 'k' ? 1024L : unit == 'm' ? 1024L * 1024 : unit == 'g' ? 1024L * 1024 * 1024 : 1;
+        return Long.parseLong(multiplier == 1 ? lower : lower.substring(0, lower.length() - 1)) * multiplier;
+    }
+
+    private static String formatSize(long size) {
+        if (size >= 1024L * 1024 * 1024) return (size / (1024L * 1024 * 1024)) + "GB";
+        if (size >= 1024L * 1024) return (size / (1024L * 1024)) + "MB";
+        if (size >= 1024) return (size / 1024) + "KB";
+        return size + "B";
+    }
 }